@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import self.philbrown.javaQuery.$;
+import self.philbrown.javaQuery.AjaxOptions;
+import self.philbrown.javaQuery.Function;
+import self.philbrown.javaQuery.Headers;
+
+
+/**
+ * Compares the cost of creating AjaxOptions while {@link $#ajaxSetup(AjaxOptions) ajaxSetup} is in use,
+ * against copying the same options with reflection. Uses the format:
+ * <pre>
+ * java AjaxOptionsBenchmark [iterations]
+ * </pre>
+ * @author Phil Brown
+ */
+public class AjaxOptionsBenchmark
+{
+	/** Default number of options created by each measurement */
+	private static final int ITERATIONS = 200000;
+
+	/** Prevents the JIT from removing unused results */
+	private static int sink;
+
+	/**
+	 * Runs the benchmark
+	 * @param args the number of iterations (optional)
+	 */
+	public static void main(String[] args)
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : ITERATIONS;
+		AjaxOptions defaults = new AjaxOptions().dataType("json")
+				                                .timeout(5000)
+				                                .cache(true)
+				                                .headers(new Headers().accept("application/json"))
+				                                .statusCode(401, new Function() {
+				                                	@Override
+				                                	public void invoke($ javaQuery, Object... params) {}
+				                                });
+
+		for (int round = 0; round < 3; round++)
+		{
+			//without ajaxSetup, so that only the reflective copies are measured
+			$.ajaxSetup(null);
+			long reflective = measure(iterations, true, defaults);
+			$.ajaxSetup(defaults);
+			long direct = measure(iterations, false, defaults);
+			System.out.println(String.format("round %d: reflection %.1f ns/op, direct %.1f ns/op",
+					                         round + 1,
+					                         (double) reflective / iterations,
+					                         (double) direct / iterations));
+		}
+		$.ajaxSetup(null);
+	}
+
+	/**
+	 * Creates options for a request, and the copy that the request task makes of them
+	 * @param iterations the number of options to create
+	 * @param reflection {@code true} to copy the defaults with reflection, as older versions did
+	 * @param defaults the global options
+	 * @return the elapsed time, in nanoseconds
+	 */
+	private static long measure(int iterations, boolean reflection, AjaxOptions defaults)
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			AjaxOptions options;
+			if (reflection)
+			{
+				options = reflectiveCopy(defaults, new AjaxOptions()).url("http://www.example.com/" + i);
+				options = reflectiveCopy(options, reflectiveCopy(defaults, new AjaxOptions()));
+			}
+			else
+			{
+				options = new AjaxOptions().url("http://www.example.com/" + i);
+				options = new AjaxOptions(options);
+			}
+			sink += options.url().length();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/** Options setters, by name */
+	private static Map<String, Method> setters = new HashMap<String, Method>();
+	/** Options getters, by name */
+	private static Map<String, Method> getters = new HashMap<String, Method>();
+	static
+	{
+		for (Method m : AjaxOptions.class.getMethods())
+		{
+			if (m.getParameterTypes().length != 0)
+				setters.put(m.getName(), m);
+			else
+				getters.put(m.getName(), m);
+		}
+	}
+
+	/**
+	 * Copies options by invoking the setter and getter of each field
+	 * @param source the options to copy
+	 * @param target the options to copy to
+	 * @return {@code target}
+	 */
+	private static AjaxOptions reflectiveCopy(AjaxOptions source, AjaxOptions target)
+	{
+		for (Field f : AjaxOptions.class.getDeclaredFields())
+		{
+			Method setter = setters.get(f.getName());
+			Method getter = getters.get(f.getName());
+			if (setter != null && getter != null)
+			{
+				try {
+					setter.invoke(target, getter.invoke(source));
+				} catch (Throwable t) {}
+			}
+		}
+		return target;
+	}
+}
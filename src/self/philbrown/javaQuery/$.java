@@ -51,9 +51,9 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -63,14 +63,17 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
-import javax.imageio.ImageIO;
 import javax.swing.AbstractButton;
 import javax.swing.ImageIcon;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
 import javax.swing.text.JTextComponent;
 import javax.swing.text.View;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -2901,7 +2904,7 @@ public class $
 	 */
 	public static void ajax(Map<String, Object> options)
 	{
-		ajax(new JSONObject(options));
+		ajax(new AjaxOptions(options));
 	}
 	
 	/**
@@ -2928,7 +2931,7 @@ public class $
 	{
 		try
 		{
-			new AjaxTask(options).execute();
+			new AjaxTask(options).start();
 		}
 		catch (Throwable t)
 		{
@@ -2944,7 +2947,7 @@ public class $
 	{
 		try
 		{
-			new AjaxTask(options).execute();
+			new AjaxTask(options).start();
 		}
 		catch (Throwable t)
 		{
@@ -2952,6 +2955,63 @@ public class $
 		}
 	}
 	
+	/**
+	 * Perform an Ajax Task using the given {@code AjaxOptions}, and get a future that is completed
+	 * with its response. The callbacks set in the options are still invoked. If the request fails, 
+	 * the future is completed exceptionally with an {@link AjaxException}. Cancelling the future 
+	 * aborts the request.
+	 * @param options the options to set for the Ajax Task
+	 * @return the future response
+	 */
+	public static CompletableFuture<AjaxResponse> ajaxAsync(AjaxOptions options)
+	{
+		try
+		{
+			AjaxTask task = new AjaxTask(options);
+			CompletableFuture<AjaxResponse> future = task.future();
+			task.start();
+			return future;
+		}
+		catch (Throwable t)
+		{
+			CompletableFuture<AjaxResponse> future = new CompletableFuture<AjaxResponse>();
+			future.completeExceptionally(t);
+			return future;
+		}
+	}
+	
+	/**
+	 * Perform many Ajax Tasks, with at most {@code parallelism} tasks in progress at once. The batch counts
+	 * as a single global Ajax operation. Use {@link AjaxBatch} directly to receive each result as it
+	 * arrives or in request order.
+	 * @param requests the options of each task
+	 * @param parallelism the maximum number of tasks in progress at once
+	 * @return a future that is completed with the results once all tasks have finished, including any failures.
+	 */
+	public static CompletableFuture<AjaxBatch.Result> ajaxAll(Collection<AjaxOptions> requests, int parallelism)
+	{
+		return new AjaxBatch(requests).parallelism(parallelism).start();
+	}
+	
+	/**
+	 * Perform many Ajax Tasks, with at most {@code parallelism} tasks in progress at once. The batch counts
+	 * as a single global Ajax operation.
+	 * @param requests the options of each task
+	 * @param parallelism the maximum number of tasks in progress at once
+	 * @param ordered if {@code true}, results are passed to {@code each} in request order. Otherwise, they
+	 * are passed as the tasks complete.
+	 * @param each invoked with the index, {@link AjaxResponse} (or {@code null}) and failure (or {@code null}) 
+	 * of each task. May be {@code null}.
+	 * @param complete invoked with the {@link AjaxBatch.Result} once all tasks have finished. May be {@code null}.
+	 * @return the batch, which can be used to cancel the remaining tasks
+	 */
+	public static AjaxBatch ajaxAll(Collection<AjaxOptions> requests, int parallelism, boolean ordered, Function each, Function complete)
+	{
+		AjaxBatch batch = new AjaxBatch(requests).parallelism(parallelism).ordered(ordered).each(each).complete(complete);
+		batch.start();
+		return batch;
+	}
+	
 	/**
 	 * Perform an Ajax Task. This is usually done as the result of an Ajax Error
 	 * @param request the request
@@ -3333,7 +3393,8 @@ public class $
 	
 	/**
 	 * For `ImageView`s, this will set the image to the given asset or url. Otherwise, it will set the
-	 * background image for the selected views.
+	 * background image for the selected views. The image is loaded and decoded by the {@link ImageLoader}
+	 * on a background thread, then set on the event dispatch thread.
 	 * @param source asset path, file path (starting with "file://") or URL to image
 	 * @param width specifies the output bitmap width
 	 * @param height specifies the output bitmap height
@@ -3343,135 +3404,58 @@ public class $
 	 * @return this
 	 * @see AjaxOptions#error(Function)
 	 */
-	public $ image(String source, int width, int height, Function error)
+	public $ image(String source, int width, int height, final Function error)
 	{
-		if (source.startsWith("file://"))
-		{
-			try {
-				Image image = ImageIO.read(new File(source.substring(7)));
-				
-				for (Component v : views)
-				{
-					if (v instanceof JLabel)
-					{
-						((JLabel) v).setIcon(new ImageIcon(image));
-					}
-					else if (v instanceof Window)
-					{
-						((Window) v).setIconImage(image);
-					}
-					else
-					{
-						if (v instanceof Container)
-						{
-							JLabel l = new JLabel(new ImageIcon(image));
-							l.setBounds(v.getBounds());
-							((Container) v).add(l);
-						}
-						else if (v.getParent() != null && v.getParent() instanceof Container)
+		ImageLoader.getInstance().load(source, width, height).whenComplete(new BiConsumer<Image, Throwable>() {
+
+			@Override
+			public void accept(final Image image, Throwable failure) {
+				final Throwable t = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+				Runnable apply = new Runnable() {
+
+					@Override
+					public void run() {
+						if (image != null)
 						{
-							JLabel l = new JLabel(new ImageIcon(image));
-							l.setBounds(v.getBounds());
-							((Container) v.getParent()).add(l);
+							image(image);
 						}
-						
-						
-					}
-				}
-			}
-			catch(Throwable t) {
-				if (error != null) {
-					error.invoke($.with(view(0)), t);
-				}
-			}
-		}
-		else
-		{
-			boolean fallthrough = false;
-			try {
-				new URL(source);
-			}
-			catch (Throwable t)
-			{
-				fallthrough = true;
-			}
-			if (fallthrough)
-			{
-				AjaxOptions options = new AjaxOptions().url(source)
-						                               .type("GET")
-						                               .dataType("image")
-						                               .context(view(0))
-						                               .global(false)
-						                               .success(new Function() {
-					@Override
-					public void invoke($ javaQuery, Object... params) {
-						Image image = (Image) params[0];
-						for (Component v : views)
+						else if (error != null)
 						{
-							if (v instanceof JLabel)
-							{
-								((JLabel) v).setIcon(new ImageIcon(image));
-							}
-							else if (v instanceof Window)
+							if (t instanceof AjaxException)
 							{
-								((Window) v).setIconImage(image);
+								AjaxException e = (AjaxException) t;
+								error.invoke($.with(view(0)), e.getError(), e.getStatus(), e.getReason(), e.getHeaders());
 							}
 							else
 							{
-								if (v instanceof Container)
-								{
-									JLabel l = new JLabel(new ImageIcon(image));
-									l.setBounds(v.getBounds());
-									((Container) v).add(l);
-								}
-								else if (v.getParent() != null && v.getParent() instanceof Container)
-								{
-									JLabel l = new JLabel(new ImageIcon(image));
-									l.setBounds(v.getBounds());
-									((Container) v.getParent()).add(l);
-								}
-								
-								
+								error.invoke($.with(view(0)), t);
 							}
 						}
 					}
-				});
-				
-				if (error != null) {
-					options.error(error);
-				}
-				if (width >= 0)
-				{
-					options.imageWidth(width);
-				}
-				if (height >= 0)
-				{
-					options.imageHeight(height);
-				}
-				$.ajax(options);
+				};
+				if (SwingUtilities.isEventDispatchThread())
+					apply.run();
+				else
+					SwingUtilities.invokeLater(apply);
 			}
-		}
+		});
 		return this;
 	}
 	
 	/**
-	 * Iterates through the selected views and sets the images to the given images (in order)
-	 * @param source asset path, file path (starting with "file://") or URL to image
+	 * Iterates through the selected views and sets the images to the given images (in order).
+	 * The images are loaded by an {@link ImageBatch}, so views that are showing are loaded first.
+	 * @param sources asset paths, file paths (starting with "file://") or URLs to images
 	 * @return this
 	 */
 	public $ image(final List<String> sources)
 	{
-		this.each(new Function() {
-			@Override
-			public void invoke($ javaQuery, Object... params) {
-				javaQuery.image(sources.get((Integer) params[0]));
-			}
-		});
-		return this;
+		return image(sources, -1, -1, null);
 	}
 	
 	/**
-	 * Iterates through the selected views and sets the images to the given images (in order)
+	 * Iterates through the selected views and sets the images to the given images (in order).
+	 * The images are loaded by an {@link ImageBatch}, so views that are showing are loaded first.
 	 * @param sources the file paths or URLs to set
 	 * @param width the output width of the image
 	 * @param height the output height of the image
@@ -3483,12 +3467,7 @@ public class $
 	 */
 	public $ image(final List<String> sources, final int width, final int height, final Function error)
 	{
-		this.each(new Function() {
-			@Override
-			public void invoke($ javaQuery, Object... params) {
-				javaQuery.image(sources.get((Integer) params[0]), width, height, error);
-			}
-		});
+		new ImageBatch(views, sources).size(width, height).error(error).start();
 		return this;
 	}
 	
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Performs many Ajax requests with a bounded number of requests in progress at once, and reports
+ * their results together. The batch counts as a single global Ajax operation, so
+ * {@link $#ajaxStart()} and {@link $#ajaxStop()} are invoked once for the whole batch.
+ * <br>
+ * Usage:
+ * <pre>
+ * new AjaxBatch(requests).parallelism(8)
+ *                        .each(new Function() {
+ *                            public void invoke($ j, Object... args) {
+ *                                int index = (Integer) args[0];
+ *                                AjaxResponse response = (AjaxResponse) args[1];//null if the request failed
+ *                                Throwable error = (Throwable) args[2];//null if the request succeeded
+ *                            }
+ *                        })
+ *                        .complete(new Function() {
+ *                            public void invoke($ j, Object... args) {
+ *                                AjaxBatch.Result result = (AjaxBatch.Result) args[0];
+ *                            }
+ *                        })
+ *                        .start();
+ * </pre>
+ * @author Phil Brown
+ * @see $#ajaxAll(Collection, int)
+ */
+public class AjaxBatch
+{
+	/** Default number of requests in progress at once */
+	private static final int DEFAULT_PARALLELISM = 6;
+
+	/** The requests */
+	private final AjaxOptions[] requests;
+	/** Maximum number of requests in progress at once */
+	private int parallelism = DEFAULT_PARALLELISM;
+	/** If {@code true}, results are passed to {@link #each} in request order */
+	private boolean ordered;
+	/** Invoked for each result */
+	private Function each;
+	/** Invoked once all requests have finished */
+	private Function complete;
+
+	/** Completed when all requests have finished */
+	private final CompletableFuture<Result> future = new CompletableFuture<Result>();
+	/** Futures of the requests that are in progress, by index. Guarded by this. */
+	private final Map<Integer, CompletableFuture<AjaxResponse>> inProgress = new TreeMap<Integer, CompletableFuture<AjaxResponse>>();
+	/** Successful responses, by index */
+	private final AjaxResponse[] responses;
+	/** Failures, by index */
+	private final Throwable[] failures;
+	/** Whether or not each result has been recorded */
+	private final boolean[] finished;
+	/** Index of the next request to start. Guarded by this. */
+	private int next;
+	/** Number of finished requests. Guarded by this. */
+	private int finishedCount;
+	/** Index of the next result to deliver, when {@link #ordered} is set. Guarded by this. */
+	private int nextDelivery;
+	/** Indexes of the results that are ready to be passed to {@link #each}, in delivery order. Guarded by this. */
+	private final List<Integer> ready = new ArrayList<Integer>();
+	/** Set while a thread is passing results to {@link #each}. Guarded by this. */
+	private boolean delivering;
+	/** Set while a thread is starting requests. Guarded by this. */
+	private boolean launching;
+	/** Set if more requests can be started while another thread is {@link #launching}. Guarded by this. */
+	private boolean relaunch;
+	/** Set once the batch has started */
+	private boolean started;
+	/** Set once the batch has been cancelled. Guarded by this. */
+	private boolean cancelled;
+	/** Set once the batch has finished. Guarded by this. */
+	private boolean exited;
+
+	/**
+	 * The results of a batch
+	 */
+	public static class Result
+	{
+		/** The responses, in request order. Failed requests have a {@code null} response. */
+		public List<AjaxResponse> responses;
+		/** The failures, by request index. Usually {@link AjaxException AjaxExceptions}. */
+		public Map<Integer, Throwable> failures;
+		/** Number of requests that succeeded */
+		public int succeeded;
+		/** Number of requests that failed */
+		public int failed;
+
+		/**
+		 * Checks whether or not every request succeeded
+		 * @return {@code true} if no request failed
+		 */
+		public boolean isSuccess()
+		{
+			return failed == 0;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("AjaxBatch.Result[succeeded=%d, failed=%d]", succeeded, failed);
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param requests the options of each request
+	 */
+	public AjaxBatch(Collection<AjaxOptions> requests)
+	{
+		this.requests = requests.toArray(new AjaxOptions[requests.size()]);
+		this.responses = new AjaxResponse[this.requests.length];
+		this.failures = new Throwable[this.requests.length];
+		this.finished = new boolean[this.requests.length];
+	}
+
+	/**
+	 * Set the maximum number of requests in progress at once. Default is 6.
+	 * @param parallelism the maximum number of requests
+	 * @return this
+	 */
+	public AjaxBatch parallelism(int parallelism)
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Set whether results are passed to the {@link #each(Function) each} function in request order.
+	 * Otherwise, results are passed as the requests complete. Default is {@code false}.
+	 * @param ordered {@code true} to deliver results in request order
+	 * @return this
+	 */
+	public AjaxBatch ordered(boolean ordered)
+	{
+		this.ordered = ordered;
+		return this;
+	}
+
+	/**
+	 * Set the Function that is invoked with the result of each request. It receives the request index,
+	 * the {@link AjaxResponse} (or {@code null} if the request failed), and the failure (or {@code null}
+	 * if the request succeeded). The function is never invoked by more than one thread at once.
+	 * @param each the function
+	 * @return this
+	 */
+	public AjaxBatch each(Function each)
+	{
+		this.each = each;
+		return this;
+	}
+
+	/**
+	 * Set the Function that is invoked once all requests have finished. It receives the {@link Result}.
+	 * @param complete the function
+	 * @return this
+	 */
+	public AjaxBatch complete(Function complete)
+	{
+		this.complete = complete;
+		return this;
+	}
+
+	/**
+	 * Starts the requests
+	 * @return a future that is completed with the results once all requests have finished. It is not
+	 * completed exceptionally when requests fail; check the {@link Result#failures failures} instead.
+	 * Cancelling the future cancels the batch.
+	 */
+	public CompletableFuture<Result> start()
+	{
+		synchronized (this)
+		{
+			if (started)
+				throw new IllegalStateException("Batch already started");
+			started = true;
+		}
+		future.whenComplete(new BiConsumer<Result, Throwable>() {
+
+			@Override
+			public void accept(Result result, Throwable t) {
+				if (t instanceof CancellationException)
+					cancel();
+			}
+		});
+		AjaxTask.enterGlobal();
+		if (requests.length == 0)
+			finish();
+		else
+			launch();
+		return future;
+	}
+
+	/**
+	 * Aborts the requests in progress, and does not start the remaining requests. The batch completes
+	 * with the results received so far.
+	 */
+	public void cancel()
+	{
+		List<CompletableFuture<AjaxResponse>> abort;
+		synchronized (this)
+		{
+			if (cancelled)
+				return;
+			cancelled = true;
+			abort = new ArrayList<CompletableFuture<AjaxResponse>>(inProgress.values());
+		}
+		for (CompletableFuture<AjaxResponse> f : abort)
+		{
+			//the cancelled request reports its result like any other failure
+			f.cancel(true);
+		}
+		if (deliverReady())
+			finish();
+	}
+
+	/**
+	 * Starts requests until the parallelism limit is reached
+	 */
+	private void launch()
+	{
+		synchronized (this)
+		{
+			//requests that fail immediately finish on this thread, so avoid recursion
+			if (launching)
+			{
+				relaunch = true;
+				return;
+			}
+			launching = true;
+		}
+		while (true)
+		{
+			int index;
+			synchronized (this)
+			{
+				if (cancelled || next >= requests.length || inProgress.size() >= parallelism)
+				{
+					if (!relaunch)
+					{
+						launching = false;
+						return;
+					}
+					relaunch = false;
+					continue;
+				}
+				index = next++;
+			}
+			final int i = index;
+			CompletableFuture<AjaxResponse> f = $.ajaxAsync(requests[i]);
+			synchronized (this)
+			{
+				inProgress.put(i, f);
+			}
+			f.whenComplete(new BiConsumer<AjaxResponse, Throwable>() {
+
+				@Override
+				public void accept(AjaxResponse response, Throwable t) {
+					onResult(i, response, t);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Records the result of a request, delivers results and starts the next request
+	 * @param index the request index
+	 * @param response the response, or {@code null} if the request failed
+	 * @param t the failure, or {@code null} if the request succeeded
+	 */
+	private void onResult(int index, AjaxResponse response, Throwable t)
+	{
+		if (t instanceof CompletionException && t.getCause() != null)
+			t = t.getCause();
+		boolean done;
+		synchronized (this)
+		{
+			inProgress.remove(index);
+			responses[index] = response;
+			failures[index] = t;
+			finished[index] = true;
+			finishedCount++;
+			deliver(index);
+			done = isDone();
+		}
+		if (deliverReady())
+			finish();
+		else if (!done)
+			launch();
+	}
+
+	/**
+	 * Checks whether or not every request has finished, or the batch was cancelled and no request is
+	 * still in progress. Must be called while holding the lock on this batch.
+	 * @return {@code true} if no more results will be recorded
+	 */
+	private boolean isDone()
+	{
+		return finishedCount == requests.length || (cancelled && inProgress.isEmpty());
+	}
+
+	/**
+	 * Queues the results that are ready to be passed to the {@link #each} function. Must be called while
+	 * holding the lock on this batch.
+	 * @param index the index of the newest result
+	 */
+	private void deliver(int index)
+	{
+		if (each == null)
+			return;
+		if (!ordered)
+		{
+			ready.add(index);
+			return;
+		}
+		while (nextDelivery < requests.length && finished[nextDelivery])
+		{
+			ready.add(nextDelivery);
+			nextDelivery++;
+		}
+	}
+
+	/**
+	 * Passes the queued results to the {@link #each} function, without holding the lock on this batch.
+	 * Only one thread delivers at a time, so the results are passed in the order they were queued.
+	 * @return {@code true} if no more results will be recorded and every result has been delivered, in
+	 * which case the batch can be completed. {@code false} if results are still expected, or another
+	 * thread is delivering, and will complete the batch.
+	 */
+	private boolean deliverReady()
+	{
+		synchronized (this)
+		{
+			if (delivering)
+				return false;
+			delivering = true;
+		}
+		while (true)
+		{
+			List<Integer> indexes;
+			synchronized (this)
+			{
+				if (ready.isEmpty())
+				{
+					delivering = false;
+					return isDone();
+				}
+				indexes = new ArrayList<Integer>(ready);
+				ready.clear();
+			}
+			for (int index : indexes)
+			{
+				invokeEach(index);
+			}
+		}
+	}
+
+	/**
+	 * Invokes the {@link #each} function for one result
+	 * @param index the request index
+	 */
+	private void invokeEach(int index)
+	{
+		try
+		{
+			each.invoke(null, index, responses[index], failures[index]);
+		}
+		catch (Throwable t)
+		{
+			Log.e("AjaxBatch", "Error in each function: " + t.getMessage());
+		}
+	}
+
+	/**
+	 * Completes the batch
+	 */
+	private void finish()
+	{
+		//the last result and a cancellation can both finish the batch, so only the first call counts
+		synchronized (this)
+		{
+			if (exited)
+				return;
+			exited = true;
+		}
+		Result result = new Result();
+		synchronized (this)
+		{
+			result.responses = Collections.unmodifiableList(Arrays.asList(responses.clone()));
+			Map<Integer, Throwable> failed = new TreeMap<Integer, Throwable>();
+			for (int i = 0; i < requests.length; i++)
+			{
+				if (!finished[i])
+					failed.put(i, new CancellationException("Batch cancelled"));
+				else if (failures[i] != null)
+					failed.put(i, failures[i]);
+			}
+			result.failures = Collections.unmodifiableMap(failed);
+			result.failed = failed.size();
+			result.succeeded = requests.length - result.failed;
+		}
+		AjaxTask.exitGlobal();
+		if (complete != null)
+			complete.invoke(null, result);
+		future.complete(result);
+	}
+}
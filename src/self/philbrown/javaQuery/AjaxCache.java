@@ -0,0 +1,747 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.awt.Image;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Bounded, thread-safe cache of parsed ajax responses. This is used by {@link AjaxTask} when
+ * the {@link AjaxOptions#cache() cache} option is set. Each entry expires after the
+ * {@code max-age} set in its Cache-Control header, or otherwise after the 
+ * {@link AjaxOptions#cacheTimeout() cacheTimeout} that was set when it was stored. Expired entries 
+ * that have an ETag or Last-Modified date are kept so that they can be revalidated using a 
+ * conditional request. When either the maximum number of entries or the maximum (estimated) 
+ * number of bytes is exceeded, the least-recently used entries are evicted.
+ * @author Phil Brown
+ */
+public class AjaxCache
+{
+	/** Default maximum number of entries */
+	private static final int DEFAULT_MAX_ENTRIES = 500;
+	/** Default maximum estimated size, in bytes (32 MB) */
+	private static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+	/** Eviction removes entries until the cache is at this fraction of its limits */
+	private static final double LOW_WATER_MARK = 0.9;
+	/** Used when the size of a response cannot be estimated */
+	private static final long DEFAULT_ENTRY_SIZE = 1024;
+
+	/** The cache used by {@link AjaxTask} */
+	private static final AjaxCache instance = new AjaxCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+
+	/** Represents a cached HTTP response */
+	public static class Entry
+	{
+		/** The cache key */
+		final String key;
+		/** The request URL */
+		final String url;
+		/** The response Object */
+		final Object response;
+		/** The estimated size of the response, in bytes */
+		final long size;
+		/** The time (in milliseconds) this entry was stored, or last revalidated */
+		final long timestamp;
+		/** The time (in milliseconds) after which this entry must be revalidated */
+		final long expires;
+		/** The time (in milliseconds) until which this entry may be used while it is revalidated in the background */
+		final long staleUntil;
+		/** The ETag of the response */
+		final String etag;
+		/** The Last-Modified timestamp */
+		final Date lastModified;
+		/** The last time (in milliseconds) this entry was requested. Used for LRU eviction. */
+		volatile long lastAccess;
+		/** Set while a background revalidation is running for this entry */
+		final AtomicBoolean revalidating = new AtomicBoolean();
+
+		/**
+		 * Constructor
+		 */
+		Entry(String key, String url, Object response, long size, long ttl, long staleWhileRevalidate, String etag, Date lastModified)
+		{
+			this(key, url, response, size, System.currentTimeMillis(), ttl, staleWhileRevalidate, etag, lastModified);
+		}
+		
+		/**
+		 * Constructor
+		 */
+		Entry(String key, String url, Object response, long size, long timestamp, long ttl, long staleWhileRevalidate, String etag, Date lastModified)
+		{
+			this.key = key;
+			this.url = url;
+			this.response = response;
+			this.size = size;
+			this.timestamp = timestamp;
+			this.expires = timestamp + ttl;
+			this.staleUntil = expires + staleWhileRevalidate;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.lastAccess = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return the response Object
+		 */
+		public Object response() { return response; }
+
+		/**
+		 * @return the request URL
+		 */
+		public String url() { return url; }
+
+		/**
+		 * @return the ETag of the response, or {@code null} if the response did not include one
+		 */
+		public String etag() { return etag; }
+
+		/**
+		 * @return the Last-Modified timestamp, or {@code null} if the response did not include one
+		 */
+		public Date lastModified() { return lastModified; }
+
+		/**
+		 * @return the time (in milliseconds) this entry was stored, or last revalidated
+		 */
+		public long timestamp() { return timestamp; }
+
+		/**
+		 * @return {@code true} if this entry has outlived its time-to-live. Otherwise {@code false}.
+		 */
+		public boolean isExpired()
+		{
+			return System.currentTimeMillis() >= expires;
+		}
+
+		/**
+		 * @return {@code true} if this entry has expired, but can still be used while it is 
+		 * revalidated in the background (using the {@code stale-while-revalidate} Cache-Control
+		 * directive). Otherwise {@code false}.
+		 */
+		public boolean isStaleWhileRevalidate()
+		{
+			long now = System.currentTimeMillis();
+			return now >= expires && now < staleUntil;
+		}
+
+		/**
+		 * @return {@code true} if this entry includes an ETag or Last-Modified date, and can 
+		 * therefore be revalidated using a conditional request once it has expired.
+		 */
+		public boolean isRevalidatable()
+		{
+			return etag != null || lastModified != null;
+		}
+
+		/**
+		 * @return {@code true} if this entry is no longer of any use. Otherwise {@code false}.
+		 */
+		boolean isDead()
+		{
+			return System.currentTimeMillis() >= staleUntil && !isRevalidatable();
+		}
+	}
+
+	/** An entry considered for eviction, with a snapshot of its last access time */
+	private static class Candidate implements Comparable<Candidate>
+	{
+		/** The entry */
+		final Entry entry;
+		/** The last access time of the entry when eviction began */
+		final long lastAccess;
+
+		/**
+		 * Constructor
+		 */
+		Candidate(Entry entry)
+		{
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+		}
+
+		@Override
+		public int compareTo(Candidate other)
+		{
+			return lastAccess < other.lastAccess ? -1 : (lastAccess == other.lastAccess ? 0 : 1);
+		}
+	}
+
+	/** The caching-related values of a set of response headers */
+	private static class CacheControl
+	{
+		/** The ETag header */
+		String etag;
+		/** The Last-Modified header */
+		Date lastModified;
+		/** The {@code max-age} directive, in milliseconds, or -1 if it is not set */
+		long maxAge = -1;
+		/** The {@code stale-while-revalidate} directive, in milliseconds */
+		long staleWhileRevalidate;
+		/** Set by the {@code no-cache} directive */
+		boolean noCache;
+		/** Set by the {@code no-store} directive */
+		boolean noStore;
+
+		/**
+		 * Constructor
+		 * @param headers the response headers. May be {@code null}.
+		 */
+		CacheControl(Header[] headers)
+		{
+			if (headers == null)
+				return;
+			boolean mustRevalidate = false;
+			for (Header header : headers)
+			{
+				String name = header.getName();
+				if (name.equalsIgnoreCase("ETag"))
+				{
+					etag = header.getValue();
+				}
+				else if (name.equalsIgnoreCase("Last-Modified"))
+				{
+					try
+					{
+						lastModified = DateUtils.parseDate(header.getValue());
+					}
+					catch (DateParseException e)
+					{
+						Log.w("AjaxCache", "Could not parse Last-Modified Header");
+					}
+				}
+				else if (name.equalsIgnoreCase("Cache-Control"))
+				{
+					for (HeaderElement element : header.getElements())
+					{
+						String directive = element.getName();
+						if (directive.equalsIgnoreCase("no-store"))
+							noStore = true;
+						else if (directive.equalsIgnoreCase("no-cache"))
+							noCache = true;
+						else if (directive.equalsIgnoreCase("must-revalidate"))
+							mustRevalidate = true;
+						else if (directive.equalsIgnoreCase("max-age"))
+							maxAge = seconds(element.getValue());
+						else if (directive.equalsIgnoreCase("stale-while-revalidate"))
+							staleWhileRevalidate = Math.max(0, seconds(element.getValue()));
+					}
+				}
+			}
+			if (mustRevalidate)
+				staleWhileRevalidate = 0;
+		}
+
+		/**
+		 * Get the time-to-live of the response
+		 * @param defaultTtl used if the headers do not specify the time-to-live
+		 * @return the time-to-live, in milliseconds
+		 */
+		long ttl(long defaultTtl)
+		{
+			if (noCache)
+				return 0;
+			if (maxAge >= 0)
+				return maxAge;
+			return defaultTtl;
+		}
+
+		/**
+		 * Parse a number of seconds
+		 * @param value the directive value
+		 * @return the value in milliseconds, or -1 if it cannot be parsed
+		 */
+		private static long seconds(String value)
+		{
+			try
+			{
+				return Long.parseLong(value.trim()) * 1000;
+			}
+			catch (Throwable t)
+			{
+				return -1;
+			}
+		}
+	}
+
+	/** Cached responses, by key */
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	/** Only one thread performs eviction at a time */
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	/** The estimated size of all entries, in bytes */
+	private final AtomicLong bytes = new AtomicLong();
+	/** Number of successful lookups */
+	private final AtomicLong hits = new AtomicLong();
+	/** Number of failed lookups */
+	private final AtomicLong misses = new AtomicLong();
+	/** Number of expired entries that were confirmed to be valid by the server */
+	private final AtomicLong revalidations = new AtomicLong();
+	/** Number of entries removed to satisfy the size limits */
+	private final AtomicLong evictions = new AtomicLong();
+	/** Number of entries removed because they outlived their time-to-live */
+	private final AtomicLong expirations = new AtomicLong();
+	/** The optional on-disk tier */
+	private volatile AjaxPersistentStore persistentStore;
+	/** Maximum number of entries */
+	private volatile int maxEntries;
+	/** Maximum estimated size, in bytes */
+	private volatile long maxBytes;
+
+	/**
+	 * Constructor
+	 * @param maxEntries the maximum number of entries
+	 * @param maxBytes the maximum estimated size of all entries, in bytes
+	 */
+	public AjaxCache(int maxEntries, long maxBytes)
+	{
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get the cache that is used for ajax responses.
+	 * @return the shared cache
+	 */
+	public static AjaxCache getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * Get the key used to cache the response for the given options.
+	 * @param options the request options
+	 * @return the cache key
+	 */
+	public static String key(AjaxOptions options)
+	{
+		String type = options.type() == null ? "GET" : options.type().toUpperCase(Locale.US);
+		String dataType = options.dataType() == null ? "text" : options.dataType().toLowerCase(Locale.US);
+		String key = type + " " + options.url() + " " + dataType;
+		//images are decoded at the requested size
+		if (dataType.equals("image") && (options.imageWidth() > 0 || options.imageHeight() > 0))
+			key += " " + options.imageWidth() + "x" + options.imageHeight();
+		//responses can depend on the cookies of the session, such as the account that is logged in
+		return options.session() == null ? key : key + " session=" + options.session();
+	}
+
+	/**
+	 * Get the cached response for the given key. Expired entries that can be revalidated (and
+	 * those within their {@code stale-while-revalidate} window) are still returned, so check
+	 * {@link Entry#isExpired()} before using the response.
+	 * @param key the cache key
+	 * @return the entry, or {@code null} if no usable entry exists.
+	 */
+	public Entry get(String key)
+	{
+		Entry entry = entries.get(key);
+		if (entry == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		if (entry.isDead())
+		{
+			if (remove(entry))
+				expirations.incrementAndGet();
+			misses.incrementAndGet();
+			return null;
+		}
+		entry.lastAccess = System.currentTimeMillis();
+		if (!entry.isExpired() || entry.isStaleWhileRevalidate())
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * Get the entry for the given key, even if it has expired. This does not affect the
+	 * cache statistics or the eviction order.
+	 * @param key the cache key
+	 * @return the entry, or {@code null} if no entry exists
+	 */
+	public Entry peek(String key)
+	{
+		return entries.get(key);
+	}
+
+	/**
+	 * Add a response to the cache, replacing any response previously stored with the same key.
+	 * The time-to-live of the response is taken from the {@code max-age} Cache-Control directive 
+	 * if it is set. If {@code no-store} is set, the response is not cached.
+	 * @param key the cache key
+	 * @param url the request URL. Used for {@link #invalidate(String) invalidation}.
+	 * @param response the parsed response
+	 * @param size the estimated size of the response, in bytes
+	 * @param ttl the amount of time, in milliseconds, that the response is valid if the 
+	 * response headers do not specify otherwise
+	 * @param headers the response headers, used to read the validators (ETag and Last-Modified)
+	 * and the Cache-Control directives.
+	 * @return the new entry, or {@code null} if the response may not be stored.
+	 * @see #estimateSize(Object, long)
+	 */
+	public Entry put(String key, String url, Object response, long size, long ttl, Header[] headers)
+	{
+		return put(key, url, response, size, ttl, headers, null);
+	}
+	
+	/**
+	 * Add a response to the cache, replacing any response previously stored with the same key.
+	 * If a {@link #setPersistentStore(AjaxPersistentStore) persistent store} is set, the response
+	 * body is also written to it. The body is decoded, so it is stored without the {@code Content-Encoding}
+	 * and {@code Content-Length} headers of the response.
+	 * @param key the cache key
+	 * @param url the request URL. Used for {@link #invalidate(String) invalidation}.
+	 * @param response the parsed response
+	 * @param size the estimated size of the response, in bytes
+	 * @param ttl the amount of time, in milliseconds, that the response is valid if the 
+	 * response headers do not specify otherwise
+	 * @param headers the response headers, used to read the validators (ETag and Last-Modified)
+	 * and the Cache-Control directives.
+	 * @param body the decoded response body. If {@code null}, the response is only cached in memory.
+	 * @return the new entry, or {@code null} if the response may not be stored.
+	 * @see #estimateSize(Object, long)
+	 */
+	public Entry put(String key, String url, Object response, long size, long ttl, Header[] headers, byte[] body)
+	{
+		CacheControl control = new CacheControl(headers);
+		AjaxPersistentStore store = persistentStore;
+		if (control.noStore)
+		{
+			Entry old = entries.get(key);
+			if (old != null)
+				remove(old);
+			if (store != null)
+				store.remove(key);
+			return null;
+		}
+		Entry entry = new Entry(key, url, response, size, control.ttl(ttl), control.staleWhileRevalidate, 
+				                control.etag, control.lastModified);
+		store(entry);
+		if (store != null && body != null)
+		{
+			AjaxPersistentStore.Record record = new AjaxPersistentStore.Record();
+			record.key = key;
+			record.url = url;
+			record.headers = storedHeaders(headers);
+			record.body = body;
+			record.timestamp = entry.timestamp;
+			record.expires = entry.expires;
+			record.staleUntil = entry.staleUntil;
+			record.etag = entry.etag;
+			record.lastModified = entry.lastModified;
+			store.store(record);
+		}
+		return entry;
+	}
+	
+	/**
+	 * Get the headers of a response that are written to the persistent store. The headers that describe
+	 * the body as it was sent are dropped, since the stored body has been decoded.
+	 * @param headers the response headers
+	 * @return the headers to store
+	 */
+	private static Header[] storedHeaders(Header[] headers)
+	{
+		if (headers == null)
+			return null;
+		List<Header> stored = new ArrayList<Header>(headers.length);
+		for (Header header : headers)
+		{
+			if (!header.getName().equalsIgnoreCase("Content-Encoding") && !header.getName().equalsIgnoreCase("Content-Length"))
+				stored.add(header);
+		}
+		return stored.toArray(new Header[stored.size()]);
+	}
+	
+	/**
+	 * Add a response that was read from the {@link #setPersistentStore(AjaxPersistentStore) persistent store}.
+	 * The response keeps the expiration it had when it was stored.
+	 * @param record the stored response
+	 * @param response the parsed response
+	 * @param size the estimated size of the response, in bytes
+	 * @return the new entry
+	 */
+	public Entry restore(AjaxPersistentStore.Record record, Object response, long size)
+	{
+		Entry entry = new Entry(record.key, record.url, response, size, record.timestamp, 
+				                record.expires - record.timestamp, record.staleUntil - record.expires, 
+				                record.etag, record.lastModified);
+		store(entry);
+		return entry;
+	}
+
+	/**
+	 * Refresh an entry after the server has confirmed (with a 304 Not Modified response) that
+	 * it is still valid.
+	 * @param entry the revalidated entry
+	 * @param ttl the amount of time, in milliseconds, that the response is valid if the 
+	 * response headers do not specify otherwise
+	 * @param headers the headers of the 304 response. These may update the validators and the
+	 * Cache-Control directives of the entry.
+	 * @return the refreshed entry
+	 */
+	public Entry revalidated(Entry entry, long ttl, Header[] headers)
+	{
+		CacheControl control = new CacheControl(headers);
+		revalidations.incrementAndGet();
+		if (control.noStore)
+		{
+			remove(entry);
+			AjaxPersistentStore store = persistentStore;
+			if (store != null)
+				store.remove(entry.key);
+			return entry;
+		}
+		Entry refreshed = new Entry(entry.key, entry.url, entry.response, entry.size, control.ttl(ttl), 
+				                    control.staleWhileRevalidate, 
+				                    control.etag != null ? control.etag : entry.etag, 
+				                    control.lastModified != null ? control.lastModified : entry.lastModified);
+		store(refreshed);
+		AjaxPersistentStore store = persistentStore;
+		if (store != null)
+			store.refresh(refreshed);
+		return refreshed;
+	}
+
+	/**
+	 * Remove all entries whose URL starts with the given prefix.
+	 * @param urlPrefix the URL prefix. For example, "http://www.example.com/api/".
+	 * @return the number of removed entries
+	 */
+	public int invalidate(String urlPrefix)
+	{
+		int count = 0;
+		for (Entry entry : entries.values())
+		{
+			if (entry.url != null && entry.url.startsWith(urlPrefix) && remove(entry))
+				count++;
+		}
+		AjaxPersistentStore store = persistentStore;
+		if (store != null)
+			store.invalidate(urlPrefix);
+		return count;
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public void clear()
+	{
+		for (Entry entry : entries.values())
+		{
+			remove(entry);
+		}
+		AjaxPersistentStore store = persistentStore;
+		if (store != null)
+			store.clear();
+	}
+	
+	/**
+	 * Set the on-disk tier of this cache. Responses that are cached in memory are also written 
+	 * to the store, and responses that are not found in memory are looked up in the store, which
+	 * allows cached responses to be used after a restart. Set to {@code null} to disable.
+	 * @param persistentStore the store
+	 */
+	public void setPersistentStore(AjaxPersistentStore persistentStore)
+	{
+		this.persistentStore = persistentStore;
+	}
+	
+	/**
+	 * Get the on-disk tier of this cache
+	 * @return the store, or {@code null} if none is set
+	 */
+	public AjaxPersistentStore getPersistentStore()
+	{
+		return persistentStore;
+	}
+
+	/**
+	 * Set the maximum number of entries. Default is 500.
+	 * @param maxEntries the maximum number of entries
+	 */
+	public void setMaxEntries(int maxEntries)
+	{
+		this.maxEntries = maxEntries;
+		evict();
+	}
+
+	/**
+	 * Set the maximum estimated size of all cached responses. Default is 32 MB.
+	 * @param maxBytes the maximum size, in bytes
+	 */
+	public void setMaxBytes(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * @return the number of cached responses
+	 */
+	public int size() { return entries.size(); }
+
+	/**
+	 * @return the estimated size of all cached responses, in bytes
+	 */
+	public long byteSize() { return bytes.get(); }
+
+	/**
+	 * @return the number of lookups that found a valid response
+	 */
+	public long hits() { return hits.get(); }
+
+	/**
+	 * @return the number of lookups that did not find a valid response
+	 */
+	public long misses() { return misses.get(); }
+
+	/**
+	 * @return the number of expired responses that the server confirmed were still valid
+	 */
+	public long revalidations() { return revalidations.get(); }
+
+	/**
+	 * @return the number of responses removed to stay within the size limits
+	 */
+	public long evictions() { return evictions.get(); }
+
+	/**
+	 * @return the number of responses removed because they had expired
+	 */
+	public long expirations() { return expirations.get(); }
+
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.US, "AjaxCache[entries=%d, bytes=%d, hits=%d, misses=%d, revalidations=%d, evictions=%d, expirations=%d]",
+				size(), byteSize(), hits(), misses(), revalidations(), evictions(), expirations());
+	}
+
+	/**
+	 * Estimate the amount of memory used by a parsed response
+	 * @param response the parsed response
+	 * @param contentLength the length of the response body, or a negative number if it is unknown
+	 * @return the estimated size, in bytes
+	 */
+	public static long estimateSize(Object response, long contentLength)
+	{
+		if (response instanceof String)
+			return ((String) response).length() * 2L;
+		if (response instanceof Image)
+		{
+			Image image = (Image) response;
+			int width = image.getWidth(null);
+			int height = image.getHeight(null);
+			if (width > 0 && height > 0)
+				return width * (long) height * 4;
+		}
+		//parsed trees are larger than their text representation, so this is a lower bound
+		if (contentLength >= 0)
+			return contentLength * 2;
+		if (response instanceof JSONObject || response instanceof JSONArray)
+			return response.toString().length() * 2L;
+		return DEFAULT_ENTRY_SIZE;
+	}
+
+	/**
+	 * Add the given entry, replacing any entry with the same key
+	 * @param entry the entry to add
+	 */
+	private void store(Entry entry)
+	{
+		Entry old = entries.put(entry.key, entry);
+		bytes.addAndGet(entry.size);
+		if (old != null)
+			bytes.addAndGet(-old.size);
+		if (entries.size() > maxEntries || bytes.get() > maxBytes)
+			evict();
+	}
+
+	/**
+	 * Remove the given entry, if it is still cached
+	 * @param entry the entry to remove
+	 * @return {@code true} if the entry was removed. Otherwise {@code false}.
+	 */
+	private boolean remove(Entry entry)
+	{
+		if (entries.remove(entry.key, entry))
+		{
+			bytes.addAndGet(-entry.size);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes expired entries, then the least-recently used entries until the cache is below
+	 * its limits. Removing a batch of entries at once keeps the cost of sorting low.
+	 */
+	private void evict()
+	{
+		if (!evictionLock.tryLock())
+			return;
+		try
+		{
+			//access times are copied, since they may change while sorting
+			List<Candidate> candidates = new ArrayList<Candidate>(entries.size());
+			for (Entry entry : entries.values())
+			{
+				if (entry.isDead())
+				{
+					if (remove(entry))
+						expirations.incrementAndGet();
+				}
+				else
+				{
+					candidates.add(new Candidate(entry));
+				}
+			}
+			if (entries.size() <= maxEntries && bytes.get() <= maxBytes)
+				return;
+			int targetEntries = (int) (maxEntries * LOW_WATER_MARK);
+			long targetBytes = (long) (maxBytes * LOW_WATER_MARK);
+			Collections.sort(candidates);
+			for (Candidate candidate : candidates)
+			{
+				if (entries.size() <= targetEntries && bytes.get() <= targetBytes)
+					break;
+				if (remove(candidate.entry))
+					evictions.incrementAndGet();
+			}
+		}
+		finally
+		{
+			evictionLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Process-wide HTTP Client used by {@link AjaxTask}. Connections are kept in a pool so that
+ * requests made to the same host reuse open (keep-alive) connections instead of opening a new
+ * socket (and performing a new TLS handshake) for every request. Idle connections are periodically
+ * closed by a background daemon thread. Responses are requested with gzip or deflate compression, and
+ * are decompressed as they are read.
+ * <br>
+ * Per-request settings, such as {@link AjaxOptions#timeout()}, should be set on the request's
+ * {@link org.apache.http.HttpRequest#getParams() params}, which override the client defaults.
+ * @author Phil Brown
+ */
+public final class AjaxClient
+{
+	/** Default maximum number of pooled connections */
+	private static final int DEFAULT_MAX_TOTAL = 100;
+	/** Default maximum number of pooled connections for a single host */
+	private static final int DEFAULT_MAX_PER_HOST = 20;
+	/** Default amount of time (in milliseconds) a connection may sit idle in the pool */
+	private static final long DEFAULT_IDLE_TIMEOUT = 30000;
+	/** Default keep-alive duration (in milliseconds) when the server does not specify one */
+	private static final long DEFAULT_KEEP_ALIVE = 30000;
+	/** How often (in milliseconds) the pool is checked for idle and expired connections */
+	private static final long EVICTION_INTERVAL = 5000;
+
+	/** Amount of time (in milliseconds) a connection may sit idle in the pool before it is closed */
+	private static volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	/** Keep-alive duration (in milliseconds) used when the server does not specify one */
+	private static volatile long keepAlive = DEFAULT_KEEP_ALIVE;
+
+	/** Pools connections for the shared client */
+	private static volatile PoolingClientConnectionManager connectionManager;
+	/** The shared client */
+	private static DefaultHttpClient client;
+	/** Closes idle and expired connections */
+	private static ScheduledExecutorService evictor;
+
+	/**
+	 * Constructor
+	 */
+	private AjaxClient()
+	{
+
+	}
+
+	/**
+	 * Get the shared HTTP Client. The client is created the first time this method is called.
+	 * @return the shared client
+	 */
+	public static synchronized DefaultHttpClient getClient()
+	{
+		if (client == null)
+		{
+			connectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+			connectionManager.setMaxTotal(DEFAULT_MAX_TOTAL);
+			connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_PER_HOST);
+
+			HttpParams params = new BasicHttpParams();
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			HttpConnectionParams.setTcpNoDelay(params, true);
+
+			client = new DefaultHttpClient(connectionManager, params);
+			//ask for gzip or deflate responses, and decompress them as they are read, for every dataType.
+			//An Accept-Encoding header set in the request's headers is not replaced.
+			client.addRequestInterceptor(new RequestAcceptEncoding());
+			//record the connect and first byte times of timed requests
+			client.addRequestInterceptor(new AjaxTimings.ConnectInterceptor());
+			client.addResponseInterceptor(new AjaxTimings.FirstByteInterceptor());
+			client.addResponseInterceptor(new ResponseContentEncoding());
+			client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+
+				@Override
+				public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+					HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+					while (it.hasNext())
+					{
+						HeaderElement element = it.nextElement();
+						if (element.getValue() != null && element.getName().equalsIgnoreCase("timeout"))
+						{
+							try
+							{
+								return Long.parseLong(element.getValue()) * 1000;
+							}
+							catch (NumberFormatException e)
+							{
+								//fall through to the default
+							}
+						}
+					}
+					return keepAlive;
+				}
+			});
+
+			evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "AjaxClient Evictor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			evictor.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					PoolingClientConnectionManager manager = connectionManager;
+					if (manager != null)
+					{
+						manager.closeExpiredConnections();
+						manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+					}
+				}
+			}, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		return client;
+	}
+
+	/**
+	 * Set the maximum number of connections that can be open at once, across all hosts.
+	 * Default is 100.
+	 * @param max the maximum number of connections
+	 */
+	public static synchronized void setMaxConnections(int max)
+	{
+		getClient();
+		connectionManager.setMaxTotal(max);
+	}
+
+	/**
+	 * Set the maximum number of connections that can be open at once to a single host.
+	 * Default is 20.
+	 * @param max the maximum number of connections per host
+	 */
+	public static synchronized void setMaxConnectionsPerHost(int max)
+	{
+		getClient();
+		connectionManager.setDefaultMaxPerRoute(max);
+	}
+
+	/**
+	 * Set the amount of time a pooled connection may remain unused before it is closed.
+	 * Default is 30 seconds.
+	 * @param timeout the idle timeout, in milliseconds
+	 */
+	public static void setIdleTimeout(long timeout)
+	{
+		idleTimeout = timeout;
+	}
+
+	/**
+	 * Set how long a connection is kept alive after a response if the server does not include
+	 * a {@code Keep-Alive} timeout in its response. Default is 30 seconds.
+	 * @param duration the keep-alive duration, in milliseconds
+	 */
+	public static void setKeepAlive(long duration)
+	{
+		keepAlive = duration;
+	}
+
+	/**
+	 * Closes all pooled connections and stops the idle connection evictor. A new client will be
+	 * created the next time {@link #getClient()} is called.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (client != null)
+		{
+			evictor.shutdownNow();
+			connectionManager.shutdown();
+			evictor = null;
+			connectionManager = null;
+			client = null;
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.json.JSONObject;
+
+/**
+ * A thread-safe cookie store that is shared by the Ajax requests of a session, so that cookies set by
+ * a server (such as session identifiers and load balancer affinity) are sent with the next requests.
+ * Each {@link AjaxOptions#session(String) session} has its own jar, so that different accounts never
+ * share cookies. Which cookies are sent with a request is decided by their domain, path, expiry and
+ * secure flag, in the same way for every {@link AjaxTransport transport}.
+ * <br>
+ * A jar can be saved to a file, so that persistent cookies (those with an expiry date) survive a
+ * restart. Changes are written in the background, shortly after they are made:
+ * <pre>
+ * AjaxCookieJar.setSession("alice", new AjaxCookieJar(new File("alice.cookies")));
+ * $.ajax(new AjaxOptions().url("https://example.com/login").type("POST").session("alice"));
+ * </pre>
+ * @author Phil Brown
+ * @see AjaxOptions#session(String)
+ */
+public class AjaxCookieJar implements CookieStore
+{
+	/** How long (in milliseconds) to wait after a change before the file is written */
+	private static final long SAVE_DELAY = 1000;
+
+	/** The cookie jars, by session */
+	private static final ConcurrentHashMap<String, AjaxCookieJar> sessions = new ConcurrentHashMap<String, AjaxCookieJar>();
+
+	/** The cookies, by {@link #key(Cookie) name, domain and path} */
+	private final ConcurrentHashMap<String, Cookie> cookies = new ConcurrentHashMap<String, Cookie>();
+	/** The file the persistent cookies are saved to, or {@code null} if the jar is not saved */
+	private final File file;
+	/** Set while a write of the file is scheduled */
+	private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+	/**
+	 * Constructor. Creates a jar that is kept in memory.
+	 */
+	public AjaxCookieJar()
+	{
+		this.file = null;
+	}
+
+	/**
+	 * Constructor. Creates a jar that saves its persistent cookies to a file, and loads the
+	 * cookies that were saved to it before.
+	 * @param file the file
+	 */
+	public AjaxCookieJar(File file)
+	{
+		this.file = file;
+		if (file.exists())
+		{
+			try
+			{
+				load();
+			}
+			catch (IOException e)
+			{
+				Log.w("Ajax", "Could not load cookies from " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Get the cookie jar of a session. A jar that is kept in memory is created the first time a session is used.
+	 * @param session the name of the session
+	 * @return the jar
+	 */
+	public static AjaxCookieJar forSession(String session)
+	{
+		AjaxCookieJar jar = sessions.get(session);
+		if (jar == null)
+		{
+			AjaxCookieJar created = new AjaxCookieJar();
+			jar = sessions.putIfAbsent(session, created);
+			if (jar == null)
+				jar = created;
+		}
+		return jar;
+	}
+
+	/**
+	 * Set the cookie jar of a session, such as a jar that is saved to a file
+	 * @param session the name of the session
+	 * @param jar the jar, or {@code null} to forget the session
+	 */
+	public static void setSession(String session, AjaxCookieJar jar)
+	{
+		if (jar == null)
+			sessions.remove(session);
+		else
+			sessions.put(session, jar);
+	}
+
+	/**
+	 * Get the key that identifies a cookie. A cookie replaces the cookie with the same name, domain and path.
+	 * @param cookie the cookie
+	 * @return the key
+	 */
+	private static String key(Cookie cookie)
+	{
+		String domain = cookie.getDomain() == null ? "" : cookie.getDomain().toLowerCase(Locale.US);
+		if (domain.startsWith("."))
+			domain = domain.substring(1);
+		String path = cookie.getPath() == null ? "/" : cookie.getPath();
+		return cookie.getName() + ';' + domain + ';' + path;
+	}
+
+	/**
+	 * Adds a cookie, replacing the cookie with the same name, domain and path. An expired cookie
+	 * removes the cookie it replaces.
+	 * @param cookie the cookie
+	 */
+	@Override
+	public void addCookie(Cookie cookie)
+	{
+		if (cookie == null)
+			return;
+		String key = key(cookie);
+		Cookie previous;
+		if (cookie.isExpired(new Date()))
+			previous = cookies.remove(key);
+		else
+			previous = cookies.put(key, cookie);
+		if (cookie.isPersistent() || (previous != null && previous.isPersistent()))
+			changed();
+	}
+
+	/**
+	 * Get the cookies that have not expired
+	 * @return the cookies
+	 */
+	@Override
+	public List<Cookie> getCookies()
+	{
+		Date now = new Date();
+		List<Cookie> list = new ArrayList<Cookie>(cookies.size());
+		for (Cookie cookie : cookies.values())
+		{
+			if (!cookie.isExpired(now))
+				list.add(cookie);
+		}
+		return list;
+	}
+
+	/**
+	 * Removes the cookies that have expired
+	 * @param date the current date
+	 * @return {@code true} if any cookie was removed. Otherwise {@code false}.
+	 */
+	@Override
+	public boolean clearExpired(Date date)
+	{
+		if (date == null)
+			return false;
+		boolean removed = false;
+		for (Iterator<Cookie> it = cookies.values().iterator(); it.hasNext();)
+		{
+			if (it.next().isExpired(date))
+			{
+				it.remove();
+				removed = true;
+			}
+		}
+		if (removed)
+			changed();
+		return removed;
+	}
+
+	/**
+	 * Removes all cookies
+	 */
+	@Override
+	public void clear()
+	{
+		cookies.clear();
+		changed();
+	}
+
+	/**
+	 * Get the file the persistent cookies are saved to
+	 * @return the file, or {@code null} if the jar is kept in memory
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Schedules a write of the file, unless one is already scheduled
+	 */
+	private void changed()
+	{
+		if (file == null || !saveScheduled.compareAndSet(false, true))
+			return;
+		AjaxScheduler.getInstance().scheduleAfter(new Runnable() {
+
+			@Override
+			public void run() {
+				saveScheduled.set(false);
+				try
+				{
+					save();
+				}
+				catch (IOException e)
+				{
+					Log.w("Ajax", "Could not save cookies to " + file + ": " + e.getMessage());
+				}
+			}
+		}, SAVE_DELAY);
+	}
+
+	/**
+	 * Writes the persistent cookies that have not expired to the file. The file is replaced at once,
+	 * so it is never left half written. Changes are saved automatically, but this can be called
+	 * before the process exits, so that the last changes are not lost.
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized void save() throws IOException
+	{
+		if (file == null)
+			return;
+		Date now = new Date();
+		File part = new File(file.getPath() + ".part");
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(part.toPath()), StandardCharsets.UTF_8));
+		try
+		{
+			for (Cookie cookie : cookies.values())
+			{
+				if (!cookie.isPersistent() || cookie.isExpired(now))
+					continue;
+				Map<String, Object> map = new HashMap<String, Object>();
+				map.put("name", cookie.getName());
+				map.put("value", cookie.getValue());
+				map.put("domain", cookie.getDomain());
+				map.put("path", cookie.getPath());
+				map.put("expires", cookie.getExpiryDate().getTime());
+				map.put("secure", cookie.isSecure());
+				map.put("version", cookie.getVersion());
+				writer.write(new JSONObject(map).toString());
+				writer.newLine();
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+		try
+		{
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads the cookies saved to the file. Lines that cannot be read, and cookies that have expired, are skipped.
+	 * @throws IOException if the file cannot be read
+	 */
+	private void load() throws IOException
+	{
+		Date now = new Date();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (line.trim().isEmpty())
+					continue;
+				try
+				{
+					JSONObject json = new JSONObject(line);
+					BasicClientCookie cookie = new BasicClientCookie(json.getString("name"), json.optString("value", null));
+					cookie.setDomain(json.optString("domain", null));
+					cookie.setPath(json.optString("path", null));
+					cookie.setExpiryDate(new Date(json.getLong("expires")));
+					cookie.setSecure(json.optBoolean("secure"));
+					cookie.setVersion(json.optInt("version"));
+					if (!cookie.isExpired(now))
+						cookies.put(key(cookie), cookie);
+				}
+				catch (Exception e)
+				{
+					Log.w("Ajax", "Skipping unreadable cookie in " + file);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Get a store for a single request, which sends the given cookies along with the cookies of this
+	 * jar, and keeps the cookies set by the response in this jar.
+	 * @param extra cookies that are only sent with the request. They take the place of the cookies
+	 * of this jar with the same name, domain and path.
+	 * @return the store
+	 */
+	CookieStore with(final List<Cookie> extra)
+	{
+		if (extra.isEmpty())
+			return this;
+		return new CookieStore() {
+
+			@Override
+			public void addCookie(Cookie cookie) {
+				AjaxCookieJar.this.addCookie(cookie);
+			}
+
+			@Override
+			public List<Cookie> getCookies() {
+				Map<String, Cookie> merged = new HashMap<String, Cookie>();
+				for (Cookie cookie : AjaxCookieJar.this.getCookies())
+					merged.put(key(cookie), cookie);
+				for (Cookie cookie : extra)
+					merged.put(key(cookie), cookie);
+				return new ArrayList<Cookie>(merged.values());
+			}
+
+			@Override
+			public boolean clearExpired(Date date) {
+				return AjaxCookieJar.this.clearExpired(date);
+			}
+
+			@Override
+			public void clear() {
+				AjaxCookieJar.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public String toString()
+	{
+		return "AjaxCookieJar" + getCookies();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import org.apache.http.Header;
+
+import self.philbrown.javaQuery.AjaxTask.AjaxError;
+
+/**
+ * Completes the future returned by {@link $#ajaxAsync(AjaxOptions)} when the request fails
+ * @author Phil Brown
+ */
+public class AjaxException extends Exception
+{
+	private static final long serialVersionUID = 1L;
+
+	/** Describes the failed request, and can be used to retry it */
+	private final transient AjaxError error;
+	/** The HTTP status code, or 0 if no response was received */
+	private final int status;
+	/** The error text */
+	private final String reason;
+	/** The response headers */
+	private final transient Header[] headers;
+
+	/**
+	 * Constructor
+	 * @param error describes the failed request
+	 * @param status the HTTP status code, or 0 if no response was received
+	 * @param reason the error text
+	 * @param headers the response headers. May be {@code null}.
+	 */
+	public AjaxException(AjaxError error, int status, String reason, Header[] headers)
+	{
+		super(status == 0 ? reason : status + " " + reason);
+		this.error = error;
+		this.status = status;
+		this.reason = reason;
+		this.headers = headers == null ? new Header[0] : headers;
+	}
+
+	/**
+	 * Get the error, which includes the original request and options
+	 * @return the error
+	 * @see $#ajax(org.apache.http.client.methods.HttpUriRequest, AjaxOptions)
+	 */
+	public AjaxError getError()
+	{
+		return error;
+	}
+
+	/**
+	 * Get the HTTP status code
+	 * @return the status code, or 0 if no response was received
+	 */
+	public int getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * Get the error text
+	 * @return the error text
+	 */
+	public String getReason()
+	{
+		return reason;
+	}
+
+	/**
+	 * Get the response headers
+	 * @return the headers
+	 */
+	public Header[] getHeaders()
+	{
+		return headers;
+	}
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import self.philbrown.javaQuery.AjaxTimings.Phase;
+
+/**
+ * Latency histograms of Ajax requests, for each phase of a request, grouped by host and by URL template.
+ * A URL template is the URL without its query, with the path segments that look like identifiers (numbers,
+ * UUIDs and long hexadecimal strings) replaced with "{id}". For example, "http://example.com/users/42/posts?page=2"
+ * has the template "http://example.com/users/{id}/posts". Responses served from the cache without a request
+ * are not recorded. The state of each {@link RateLimiter} that has been used is also available.
+ * <br>
+ * Usage:
+ * <pre>
+ * AjaxMetrics.Histogram ttfb = AjaxMetrics.getInstance().host("api.example.com").get(AjaxTimings.Phase.FIRST_BYTE);
+ * Log.i("Ajax", "p95 TTFB: " + ttfb.percentile(95) + "ms");
+ * </pre>
+ * @author Phil Brown
+ */
+public class AjaxMetrics
+{
+	/** Maximum number of URL templates. Requests with other templates are recorded under {@link #OTHER}. */
+	private static final int MAX_TEMPLATES = 500;
+	/** The template of requests recorded once {@link #MAX_TEMPLATES} has been reached */
+	public static final String OTHER = "*";
+
+	/** Numbers, UUIDs and hexadecimal strings of at least 8 characters */
+	private static final Pattern ID = Pattern.compile("\\d+|[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}|(?=[a-fA-F]*\\d)[0-9a-fA-F]{8,}");
+
+	/** Shared instance */
+	private static final AjaxMetrics instance = new AjaxMetrics();
+
+	/** Statistics by host */
+	private final ConcurrentHashMap<String, Stats> hosts = new ConcurrentHashMap<String, Stats>();
+	/** Statistics by URL template */
+	private final ConcurrentHashMap<String, Stats> templates = new ConcurrentHashMap<String, Stats>();
+	/** The rate limiters that have been used, by name */
+	private final ConcurrentHashMap<String, RateLimiter> limiters = new ConcurrentHashMap<String, RateLimiter>();
+
+	/**
+	 * The latency histograms of a group of requests, one for each {@link Phase}
+	 */
+	public static class Stats
+	{
+		/** Histograms, by phase ordinal */
+		private final Histogram[] histograms = new Histogram[Phase.values().length];
+
+		/**
+		 * Constructor
+		 */
+		Stats()
+		{
+			for (int i = 0; i < histograms.length; i++)
+				histograms[i] = new Histogram();
+		}
+
+		/**
+		 * Get the histogram of a phase
+		 * @param phase the phase
+		 * @return the histogram
+		 */
+		public Histogram get(Phase phase)
+		{
+			return histograms[phase.ordinal()];
+		}
+
+		/**
+		 * Get the number of recorded requests
+		 * @return the number of requests
+		 */
+		public long count()
+		{
+			return get(Phase.TOTAL).count();
+		}
+
+		/**
+		 * Records the timings of a request
+		 * @param timings the timings
+		 */
+		void record(AjaxTimings timings)
+		{
+			for (Phase phase : Phase.values())
+				histograms[phase.ordinal()].record(timings.nanos(phase));
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder builder = new StringBuilder(String.format(Locale.US, "count=%d", count()));
+			for (Phase phase : Phase.values())
+			{
+				Histogram h = get(phase);
+				builder.append(String.format(Locale.US, "\n  %-10s p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+						                     phase.name().toLowerCase(Locale.US), h.percentile(50), h.percentile(95),
+						                     h.percentile(99), h.max()));
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * A lock-free histogram of durations, with logarithmic buckets. Each power of two (in microseconds) is
+	 * split into four buckets, so a reported percentile is within 25% of the recorded value.
+	 */
+	public static class Histogram
+	{
+		/** Number of buckets, enough for any positive long number of microseconds */
+		private static final int BUCKETS = 4 + 61 * 4;
+
+		/** Counts, by bucket */
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		/** Number of recorded values */
+		private final AtomicLong count = new AtomicLong();
+		/** Sum of the recorded values, in microseconds */
+		private final AtomicLong sum = new AtomicLong();
+		/** Largest recorded value, in microseconds */
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Records a duration
+		 * @param nanos the duration, in nanoseconds
+		 */
+		void record(long nanos)
+		{
+			long micros = Math.max(0, nanos / 1000);
+			counts.incrementAndGet(bucket(micros));
+			count.incrementAndGet();
+			sum.addAndGet(micros);
+			long current;
+			while (micros > (current = max.get()) && !max.compareAndSet(current, micros));
+		}
+
+		/**
+		 * Get the number of recorded durations
+		 * @return the count
+		 */
+		public long count()
+		{
+			return count.get();
+		}
+
+		/**
+		 * Get the mean duration
+		 * @return the mean, in milliseconds, or 0 if nothing was recorded
+		 */
+		public double mean()
+		{
+			long n = count.get();
+			return n == 0 ? 0 : sum.get() / 1000.0 / n;
+		}
+
+		/**
+		 * Get the longest duration
+		 * @return the maximum, in milliseconds
+		 */
+		public double max()
+		{
+			return max.get() / 1000.0;
+		}
+
+		/**
+		 * Get a percentile of the durations
+		 * @param percentile the percentile, from 0 to 100
+		 * @return the upper bound of the bucket that contains the percentile, in milliseconds,
+		 * or 0 if nothing was recorded
+		 */
+		public double percentile(double percentile)
+		{
+			long n = count.get();
+			if (n == 0)
+				return 0;
+			long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				seen += counts.get(i);
+				if (seen >= target)
+					return Math.min(upperBound(i), max.get()) / 1000.0;
+			}
+			return max();
+		}
+
+		/**
+		 * Get the bucket of a duration
+		 * @param micros the duration, in microseconds
+		 * @return the bucket index
+		 */
+		private static int bucket(long micros)
+		{
+			if (micros < 4)
+				return (int) micros;
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			int sub = (int) ((micros >> (exponent - 2)) & 3);
+			return 4 + (exponent - 2) * 4 + sub;
+		}
+
+		/**
+		 * Get the exclusive upper bound of a bucket
+		 * @param bucket the bucket index
+		 * @return the upper bound, in microseconds
+		 */
+		private static long upperBound(int bucket)
+		{
+			if (bucket < 4)
+				return bucket + 1;
+			int exponent = (bucket - 4) / 4 + 2;
+			int sub = (bucket - 4) % 4;
+			return (long) (5 + sub) << (exponent - 2);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.US, "Histogram[count=%d, mean=%.2fms, p50=%.2fms, p99=%.2fms, max=%.2fms]",
+					             count(), mean(), percentile(50), percentile(99), max());
+		}
+	}
+
+	/**
+	 * Get the shared instance
+	 * @return the metrics of all Ajax requests
+	 */
+	public static AjaxMetrics getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * Records the timings of a request
+	 * @param url the request URL
+	 * @param timings the timings
+	 */
+	void record(String url, AjaxTimings timings)
+	{
+		if (url == null)
+			return;
+		stats(hosts, AjaxScheduler.host(url), Integer.MAX_VALUE).record(timings);
+		stats(templates, templateOf(url), MAX_TEMPLATES).record(timings);
+	}
+
+	/**
+	 * Get or create the statistics of a group
+	 * @param groups the groups
+	 * @param key the group key
+	 * @param max the maximum number of groups
+	 * @return the statistics
+	 */
+	private static Stats stats(ConcurrentHashMap<String, Stats> groups, String key, int max)
+	{
+		Stats stats = groups.get(key);
+		if (stats != null)
+			return stats;
+		if (groups.size() >= max)
+			key = OTHER;
+		Stats created = new Stats();
+		stats = groups.putIfAbsent(key, created);
+		return stats == null ? created : stats;
+	}
+
+	/**
+	 * Get the statistics of the requests to a host
+	 * @param host the host
+	 * @return the statistics, or {@code null} if no request to the host has been recorded
+	 */
+	public Stats host(String host)
+	{
+		return hosts.get(host);
+	}
+
+	/**
+	 * Get the statistics of the requests with a URL template
+	 * @param template the URL template
+	 * @return the statistics, or {@code null} if no request with the template has been recorded
+	 * @see #templateOf(String)
+	 */
+	public Stats template(String template)
+	{
+		return templates.get(template);
+	}
+
+	/**
+	 * Get the hosts that requests have been recorded for
+	 * @return the hosts, sorted
+	 */
+	public Set<String> hosts()
+	{
+		return new TreeSet<String>(hosts.keySet());
+	}
+
+	/**
+	 * Get the URL templates that requests have been recorded for
+	 * @return the templates, sorted
+	 */
+	public Set<String> templates()
+	{
+		return new TreeSet<String>(templates.keySet());
+	}
+
+	/**
+	 * Adds a rate limiter to the metrics. A limiter with the same name replaces it.
+	 * @param limiter the limiter
+	 */
+	void track(RateLimiter limiter)
+	{
+		limiters.put(limiter.getName(), limiter);
+	}
+	
+	/**
+	 * Get the state of the rate limiters that have been used
+	 * @return the state of each bucket, sorted by name
+	 * @see RateLimiter#getStats()
+	 */
+	public Map<String, RateLimiter.Stats> rateLimits()
+	{
+		Map<String, RateLimiter.Stats> stats = new TreeMap<String, RateLimiter.Stats>();
+		for (RateLimiter limiter : limiters.values())
+			stats.putAll(limiter.getStats());
+		return stats;
+	}
+
+	/**
+	 * Removes all recorded timings. The rate limiters keep their state.
+	 */
+	public void reset()
+	{
+		hosts.clear();
+		templates.clear();
+	}
+
+	/**
+	 * Get the template of a URL. The query and fragment are removed, and path segments that look like
+	 * identifiers are replaced with "{id}".
+	 * @param url the URL
+	 * @return the template
+	 */
+	public static String templateOf(String url)
+	{
+		String base = url;
+		String path = "";
+		try
+		{
+			URI uri = new URI(url);
+			if (uri.getRawPath() != null && uri.getHost() != null)
+			{
+				base = uri.getScheme() + "://" + uri.getRawAuthority();
+				path = uri.getRawPath();
+			}
+		}
+		catch (Exception e)
+		{
+			int query = url.indexOf('?');
+			if (query >= 0)
+				base = url.substring(0, query);
+		}
+		if (path.isEmpty())
+			return base;
+		StringBuilder builder = new StringBuilder(base);
+		String[] segments = path.split("/", -1);
+		for (int i = 1; i < segments.length; i++)
+		{
+			builder.append('/');
+			builder.append(ID.matcher(segments[i]).matches() ? "{id}" : segments[i]);
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		for (String host : hosts())
+			builder.append(host).append(": ").append(hosts.get(host)).append('\n');
+		for (String template : templates())
+			builder.append(template).append(": ").append(templates.get(template)).append('\n');
+		for (RateLimiter.Stats limit : rateLimits().values())
+			builder.append(limit).append('\n');
+		return builder.toString();
+	}
+}
@@ -17,9 +17,8 @@
 package self.philbrown.javaQuery;
 
 import java.awt.Component;
+import java.io.File;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
@@ -41,26 +40,21 @@ import org.xml.sax.helpers.DefaultHandler;
 public class AjaxOptions 
 {
 	
-	/** Used privately for reflection */
-	private static Method[] methods = AjaxOptions.class.getMethods();
-	/** Used privately for reflection */
-	private static Map<String, Method> setters = new HashMap<String, Method>(),
-			                           getters = new HashMap<String, Method>();
-	static
-	{
-		for (Method m : methods)
-		{
-			if (m.getParameterTypes().length != 0)
-				setters.put(m.getName(), m);
-			else
-				getters.put(m.getName(), m);
-		}
-	}
+	/** 
+	 * global ajax options. This is set if $.ajaxSetup is called. It is a private copy of the options
+	 * passed to $.ajaxSetup, and is never changed, so it can be shared by all new options.
+	 */
+	private static volatile AjaxOptions globalOptions;
 	
-	/** Used for reflection */
-	private static Field[] fields = AjaxOptions.class.getDeclaredFields();
-	/** global ajax options. This is set if $.ajaxSetup is called. */
-	private static AjaxOptions globalOptions;
+	/** 
+	 * Set while {@link #headers} is shared with other options. It is copied before it is changed
+	 * or returned.
+	 */
+	private boolean sharedHeaders;
+	/** Set while {@link #statusCode} is shared with other options */
+	private boolean sharedStatusCode;
+	/** Set while {@link #cookies} is shared with other options */
+	private boolean sharedCookies;
 	
 	/**
 	 * The content type sent in the request header that tells the server what kind of response
@@ -79,10 +73,13 @@ public class AjaxOptions
 	public AjaxOptions accepts(String accepts)
 	{
 		this.accepts = accepts;
-		headers.accept(accepts);
+		headers().accept(accepts);
 		return this;
 	}
 	
+	/** The {@link #queue() queue} of tasks that are not {@link #async() asynchronous} */
+	public static final String SYNC_QUEUE = "javaQuery.sync";
+	
 	/**
 	 * By default, all requests are sent asynchronously (i.e. this is set to true by default). 
 	 * If you need synchronous requests, set this option to false.
@@ -94,7 +91,9 @@ public class AjaxOptions
 	 */
 	public boolean async() { return async; }
 	/**
-	 * Set the asynchronous nature of the Task.
+	 * Set the asynchronous nature of the Task. Tasks that are not asynchronous run one at a time,
+	 * in the order they were started, on the {@link #SYNC_QUEUE} {@link #queue(String) queue}, 
+	 * unless another queue is set. The calling thread does not wait.
 	 * @param async {@code true} if the task should be asynchronous (default). {@code false} Otherwise.
 	 * @return this
 	 */
@@ -104,6 +103,43 @@ public class AjaxOptions
 		return this;
 	}
 	
+	/**
+	 * The name of a serial queue. Tasks with the same queue run one at a time, in the order they
+	 * were started. Other queues, and tasks without a queue, run in parallel.
+	 */
+	private String queue;
+	/**
+	 * Get the name of the serial queue that the task runs on
+	 * @return the name of the queue, or {@code null} if the task does not wait for other tasks
+	 */
+	public String queue() { return queue; }
+	/**
+	 * Set the name of the serial queue that the task runs on. Tasks with the same queue run one
+	 * at a time, in the order they were started, while other queues (and tasks without a queue)
+	 * run in parallel. For example, requests that change the same account can be ordered with
+	 * {@code queue("account-" + id)}. The calling thread does not wait. Queued tasks are not
+	 * {@link #coalesce(boolean) coalesced}.
+	 * @param queue the name of the queue, or {@code null} for none (default)
+	 * @return this
+	 */
+	public AjaxOptions queue(String queue)
+	{
+		this.queue = queue;
+		return this;
+	}
+	
+	/**
+	 * Get the queue the task actually runs on
+	 * @return the {@link #queue() queue}, or {@link #SYNC_QUEUE} if it is not set and the task is 
+	 * not {@link #async() asynchronous}, or {@code null} if the task does not wait for other tasks
+	 */
+	String effectiveQueue()
+	{
+		if (queue != null)
+			return queue;
+		return async ? null : SYNC_QUEUE;
+	}
+	
 	/**
 	 * A pre-request callback function. Receives these options as a parameter.
 	 */
@@ -172,7 +208,7 @@ public class AjaxOptions
 	public AjaxOptions contentType(String contentType)
 	{
 		this.contentType = contentType;
-		headers.content_type(contentType);
+		headers().content_type(contentType);
 		return this;
 	}
 	
@@ -201,8 +237,10 @@ public class AjaxOptions
 	}
 	
 	/**
-	 * Data to be sent to the server. Will be converted to String unless 
-	 * {@link #processData() processData} is set to false.
+	 * Data to be sent to the server. A {@link java.io.File File}, {@link java.io.InputStream InputStream},
+	 * {@link FormData}, {@link org.apache.http.HttpEntity HttpEntity} or {@code byte[]} is sent as it is 
+	 * read, without being converted. Other data will be converted to String unless 
+	 * {@link #processData() processData} is set.
 	 */
 	private Object data;
 	
@@ -213,8 +251,11 @@ public class AjaxOptions
 	public Object data() { return data; }
 	
 	/**
-	 * Set the data to be sent to the server. Will be converted to String unless 
-	 * {@link #processData() processData} is set to false.
+	 * Set the data to be sent to the server. A {@link java.io.File File}, {@link java.io.InputStream InputStream},
+	 * {@link FormData}, {@link org.apache.http.HttpEntity HttpEntity} or {@code byte[]} is sent as it is 
+	 * read, without being converted. Files and streams are sent with the {@link #contentType() content type}.
+	 * A stream is sent with chunked transfer encoding, and the request is not retried. Other data will 
+	 * be converted to String unless {@link #processData() processData} is set.
 	 * @param data
 	 * @return this
 	 */
@@ -285,6 +326,7 @@ public class AjaxOptions
 	 * "json": Evaluates the response as JSON and returns a JSONObject object. The JSON data is parsed in a strict manner; any malformed JSON is rejected and a parse error is thrown. (See json.org for more information on proper JSON formatting.)
 	 * "text": A plain text string.
 	 * "image" : returns a Image object
+	 * "file" : saves the response to the {@link #downloadTarget() download target}, and returns that File
 	 * @note if Script is used, {@link context} MUST be set.
 
 	 */
@@ -306,6 +348,7 @@ public class AjaxOptions
 	 * "json": Evaluates the response as JSON and returns a JSONObject object. The JSON data is parsed in a strict manner; any malformed JSON is rejected and a parse error is thrown. (See json.org for more information on proper JSON formatting.)
 	 * "text": A plain text string.
 	 * "image" : returns a Image object
+	 * "file" : saves the response to the {@link #downloadTarget() download target}, and returns that File
 	 * @note if Script is used, {@link context} MUST be set.
 	 * @param dataType
 	 * @return this
@@ -430,7 +473,16 @@ public class AjaxOptions
 	 * Get the HTTP Headers for the request
 	 * @return the HTTP Headers for the request
 	 */
-	public Headers headers() { return headers; }
+	public Headers headers() 
+	{
+		if (sharedHeaders)
+		{
+			if (headers != null)
+				headers = new Headers(new HashMap<String, String>(headers.map()));
+			sharedHeaders = false;
+		}
+		return headers; 
+	}
 	
 	/**
 	 * Set the HTTP Headers for the request
@@ -439,6 +491,7 @@ public class AjaxOptions
 	public AjaxOptions headers(Headers headers)
 	{
 		this.headers = headers;
+		this.sharedHeaders = false;
 		return this;
 	}
 	
@@ -446,6 +499,7 @@ public class AjaxOptions
 	 * If set to {@code true}, the most recent responses will be cached. The length of time
 	 * that a cached response is considered valid can be set using the 
 	 * {@link #cacheTimeout() cacheTimeout} option. Default is {@code false}. 
+	 * @see AjaxCache
 	 */
 	private boolean cache;
 	
@@ -496,7 +550,291 @@ public class AjaxOptions
 		this.cacheTimeout = cacheTimeout;
 		return this;
 	}
+
+	/**
+	 * If set to {@code true}, the request body created from the {@link #data() data} is gzip-compressed,
+	 * and sent with a {@code Content-Encoding: gzip} header. Only use this if the server accepts compressed
+	 * requests. Default is {@code false}.
+	 */
+	private boolean compressData;
+	
+	/**
+	 * Get whether or not the request body is gzip-compressed
+	 * @return {@code true} if the request body is compressed. Otherwise {@code false}.
+	 */
+	public boolean compressData() { return compressData; }
+	
+	/**
+	 * Set whether or not the request body created from the {@link #data() data} is gzip-compressed. 
+	 * Only use this if the server accepts compressed requests. Default is {@code false}.
+	 * @param compressData {@code true} to compress the request body
+	 * @return this
+	 */
+	public AjaxOptions compressData(boolean compressData)
+	{
+		this.compressData = compressData;
+		return this;
+	}
+	
+	/**
+	 * Determines whether, and when, a failed request is sent again. Default is {@code null}, 
+	 * which means failed requests are not retried.
+	 */
+	private RetryPolicy retry;
+	
+	/**
+	 * Get the policy that determines whether, and when, a failed request is sent again.
+	 * @return the retry policy, or {@code null} if failed requests are not retried.
+	 */
+	public RetryPolicy retry() { return retry; }
+	
+	/**
+	 * Set the policy that determines whether, and when, a failed request is sent again.
+	 * @param retry the retry policy, or {@code null} to not retry failed requests
+	 * @return this
+	 */
+	public AjaxOptions retry(RetryPolicy retry)
+	{
+		this.retry = retry;
+		return this;
+	}
 	
+	/**
+	 * If set to {@code true}, requests to a host that keeps failing fail immediately, without being sent,
+	 * until the host recovers. Default is {@code false}.
+	 * @see CircuitBreaker
+	 */
+	private boolean circuitBreaker;
+	
+	/**
+	 * Get whether or not the request is guarded by the {@link CircuitBreaker} of its host.
+	 * @return {@code true} if the circuit breaker is used. Otherwise {@code false}.
+	 */
+	public boolean circuitBreaker() { return circuitBreaker; }
+	
+	/**
+	 * Set whether or not the request is guarded by the {@link CircuitBreaker} of its host. When the
+	 * circuit is open, the request fails immediately with status 0.
+	 * @param circuitBreaker {@code true} to use the circuit breaker
+	 * @return this
+	 */
+	public AjaxOptions circuitBreaker(boolean circuitBreaker)
+	{
+		this.circuitBreaker = circuitBreaker;
+		return this;
+	}
+	
+	/**
+	 * The name of the session whose {@link AjaxCookieJar cookie jar} the request uses. Default is 
+	 * {@code null}, which means the request does not share cookies with other requests.
+	 */
+	private String session;
+	
+	/**
+	 * Get the name of the session whose cookie jar the request uses
+	 * @return the name of the session, or {@code null} if the request does not share cookies
+	 */
+	public String session() { return session; }
+	
+	/**
+	 * Set the name of the session whose {@link AjaxCookieJar cookie jar} the request uses. The cookies
+	 * of the jar are sent with the request, and the cookies set by the response are kept in the jar, so
+	 * they are sent with the next requests of the session. Requests of different sessions never share
+	 * cookies, cached responses or coalesced responses. Set the session in {@link $#ajaxSetup(AjaxOptions) ajaxSetup}
+	 * to share cookies between all requests. The {@link #cookies() cookies} option is still sent, but is not
+	 * added to the jar.
+	 * @param session the name of the session, or {@code null} to not share cookies (default)
+	 * @return this
+	 * @see AjaxCookieJar#setSession(String, AjaxCookieJar)
+	 */
+	public AjaxOptions session(String session)
+	{
+		this.session = session;
+		return this;
+	}
+	
+	/**
+	 * The rate limiters that the request waits for. Default is {@code null}, for no limit.
+	 * @see RateLimiter
+	 */
+	private RateLimiter[] rateLimit;
+	
+	/**
+	 * Get the rate limiters that the request waits for
+	 * @return the rate limiters, or {@code null} if the request is not limited
+	 */
+	public RateLimiter[] rateLimit() { return rateLimit; }
+	
+	/**
+	 * Set the rate limiters that the request waits for. The request takes a token from each limiter
+	 * that {@link RateLimiter#matches(String) matches} its URL when it is about to run, and waits for
+	 * the last of them, without occupying a worker thread. Retries also take tokens, but are not sent
+	 * if their tokens would not be available by the end of the retry delay. Share limiters between
+	 * requests by setting them in {@link $#ajaxSetup(AjaxOptions) ajaxSetup}.
+	 * @param rateLimit the rate limiters, or {@code null} for no limit (default)
+	 * @return this
+	 */
+	public AjaxOptions rateLimit(RateLimiter... rateLimit)
+	{
+		this.rateLimit = rateLimit == null || rateLimit.length == 0 ? null : rateLimit.clone();
+		return this;
+	}
+	
+	/**
+	 * Sends the HTTP request. Default is {@code null}, which means the shared {@link ApacheTransport} is used.
+	 * @see JdkHttpTransport
+	 */
+	private AjaxTransport transport;
+	
+	/**
+	 * Get the transport that sends the HTTP request
+	 * @return the transport, or {@code null} if the default Apache transport is used
+	 */
+	public AjaxTransport transport() { return transport; }
+	
+	/**
+	 * Set the transport that sends the HTTP request. For example, use {@link JdkHttpTransport} to send
+	 * requests over HTTP/2.
+	 * @param transport the transport, or {@code null} to use the default Apache transport
+	 * @return this
+	 */
+	public AjaxOptions transport(AjaxTransport transport)
+	{
+		this.transport = transport;
+		return this;
+	}
+	
+	/**
+	 * The file that a response with the "file" {@link #dataType() dataType} is saved to. Default is {@code null}.
+	 */
+	private File downloadTarget;
+	
+	/**
+	 * Get the file that a response with the "file" dataType is saved to
+	 * @return the download target
+	 */
+	public File downloadTarget() { return downloadTarget; }
+	
+	/**
+	 * Set the file that a response with the "file" {@link #dataType() dataType} is saved to. If the file
+	 * exists, it is replaced once the download is complete.
+	 * @param downloadTarget the download target
+	 * @return this
+	 */
+	public AjaxOptions downloadTarget(File downloadTarget)
+	{
+		this.downloadTarget = downloadTarget;
+		return this;
+	}
+	
+	/**
+	 * If set to {@code true}, an interrupted download (using the "file" {@link #dataType() dataType}) 
+	 * is kept, and is continued by the next download of the same URL to the same target, as long as 
+	 * the file has not changed on the server. Default is {@code false}.
+	 * @see FileResponseHandler
+	 */
+	private boolean resume;
+	
+	/**
+	 * Get whether or not interrupted downloads are resumed
+	 * @return {@code true} if interrupted downloads are resumed. Otherwise {@code false}.
+	 */
+	public boolean resume() { return resume; }
+	
+	/**
+	 * Set whether or not an interrupted download (using the "file" {@link #dataType() dataType}) is kept,
+	 * and continued by the next download of the same URL to the same target.
+	 * @param resume {@code true} to resume interrupted downloads
+	 * @return this
+	 */
+	public AjaxOptions resume(boolean resume)
+	{
+		this.resume = resume;
+		return this;
+	}
+	
+	/**
+	 * A function to be called as a download (using the "file" {@link #dataType() dataType}) progresses.
+	 * Receives the number of bytes received so far (long) and the size of the file (long), which is
+	 * -1 if it is not known. It will also receive a {@code null} Object for the <em>javaQuery</em>
+	 * parameter unless {@link #context() context} is non-null. This function is called on the
+	 * background thread of the request.
+	 */
+	private Function progress;
+	
+	/**
+	 * Get the function that is called as a download progresses
+	 * @return the progress function
+	 */
+	public Function progress() { return progress; }
+	
+	/**
+	 * Set the function that is called as a download (using the "file" {@link #dataType() dataType}) 
+	 * progresses. Receives the number of bytes received so far (long) and the size of the file (long),
+	 * which is -1 if it is not known. It is called at most once every {@link #progressInterval()}
+	 * milliseconds, and once the download is complete. This function is called on the background
+	 * thread of the request.
+	 * @param progress the progress function
+	 * @return this
+	 */
+	public AjaxOptions progress(Function progress)
+	{
+		this.progress = progress;
+		return this;
+	}
+	
+	/**
+	 * The minimum time, in milliseconds, between two calls to the {@link #progress() progress} function.
+	 * Default is 100.
+	 */
+	private long progressInterval = 100;
+	
+	/**
+	 * Get the minimum time, in milliseconds, between two calls to the progress function
+	 * @return the progress interval
+	 */
+	public long progressInterval() { return progressInterval; }
+	
+	/**
+	 * Set the minimum time, in milliseconds, between two calls to the {@link #progress() progress} function.
+	 * @param progressInterval the progress interval
+	 * @return this
+	 */
+	public AjaxOptions progressInterval(long progressInterval)
+	{
+		this.progressInterval = progressInterval;
+		return this;
+	}
+	
+	/**
+	 * If set to {@code true}, and an identical {@code GET} or {@code HEAD} request (same URL,
+	 * dataType, headers and cookies) is already in progress, this request will not be sent. Instead,
+	 * the response of the request in progress will be passed to this request's callbacks. Note that
+	 * the parsed response object is shared by all the coalesced requests. Ignored for synchronous
+	 * requests. Default is {@code false}.
+	 */
+	private boolean coalesce;
+
+	/**
+	 * Get whether or not this request will share the response of an identical request that is in progress.
+	 * @return {@code true} if this request may be coalesced. Otherwise {@code false}.
+	 */
+	public boolean coalesce() { return coalesce; }
+
+	/**
+	 * Set whether or not this request will share the response of an identical request that is in progress.
+	 * @param coalesce {@code true} to allow the request to be coalesced with an identical {@code GET} or
+	 * {@code HEAD} request that is in progress. Note that the parsed response object is shared by all
+	 * the coalesced requests. Requests with a {@link #username(String) username} or {@link #password(String) password}
+	 * are never coalesced, so that a response is only given to the caller it was authorized for. Default is {@code false}.
+	 * @return this
+	 */
+	public AjaxOptions coalesce(boolean coalesce)
+	{
+		this.coalesce = coalesce;
+		return this;
+	}
+
 	/**
 	 * Contains a Key-Value mapping of cookies to send to in the Ajax request.
 	 */
@@ -508,6 +846,12 @@ public class AjaxOptions
 	 */
 	public Map<String, String> cookies()
 	{
+		if (sharedCookies)
+		{
+			if (cookies != null)
+				cookies = new HashMap<String, String>(cookies);
+			sharedCookies = false;
+		}
 		return cookies;
 	}
 	
@@ -518,6 +862,7 @@ public class AjaxOptions
 	public void cookies(Map<String, String> cookies)
 	{
 		this.cookies = cookies;
+		this.sharedCookies = false;
 	}
 	
 	/**
@@ -528,7 +873,7 @@ public class AjaxOptions
 	@SuppressWarnings("unchecked")
 	public void cookies(JSONObject cookies) throws JSONException
 	{
-		this.cookies = (Map<String, String>) $.map(cookies);
+		cookies((Map<String, String>) $.map(cookies));
 	}
 	
 	/**
@@ -543,8 +888,9 @@ public class AjaxOptions
 	
 	/**
 	 * Allow the request to be successful only if the response has changed since the last request. 
-	 * This is done by checking the Last-Modified header. Default value is {@code false}, ignoring 
-	 * the header.
+	 * This is done by sending the ETag and Last-Modified values of the last response in the
+	 * If-None-Match and If-Modified-Since headers, so that the server can reply with 304 Not Modified
+	 * instead of the full response. Default value is {@code false}, ignoring the headers.
 	 */
 	private boolean ifModified = false;
 	
@@ -634,7 +980,16 @@ public class AjaxOptions
 	 * corresponding code.
 	 * @return the mapping
 	 */
-	public Map<Integer, Function> statusCode() { return statusCode; }
+	public Map<Integer, Function> statusCode() 
+	{
+		if (sharedStatusCode)
+		{
+			if (statusCode != null)
+				statusCode = new HashMap<Integer, Function>(statusCode);
+			sharedStatusCode = false;
+		}
+		return statusCode; 
+	}
 	
 	/**
 	 * Sets a mapping of numeric HTTP codes to functions to be 
@@ -649,6 +1004,7 @@ public class AjaxOptions
 	public AjaxOptions statusCode(Map<Integer, Function> statusCode)
 	{
 		this.statusCode = statusCode;
+		this.sharedStatusCode = false;
 		return this;
 	}
 	
@@ -670,25 +1026,29 @@ public class AjaxOptions
 	 */
 	public AjaxOptions statusCode(Integer code, Function function)
 	{
-		this.statusCode.put(code, function);
+		statusCode().put(code, function);
 		return this;
 	}
 	
 	/**
-	 * A function to be called if the request succeeds. The function gets passed two arguments:
+	 * A function to be called if the request succeeds. The function gets passed four arguments:
 	 * <ol>
 	 * <li>The data returned from the server, formatted according to the dataType parameter
 	 * <li>a string describing the status
+	 * <li>the response headers
+	 * <li>the {@link AjaxTimings} of the request, which do not include the callback phase yet
 	 * </ol>
 	 */
 	private Function success;
 	
 	/**
 	 * Gets the function that will be called if the request succeeds. The function gets passed 
-	 * two arguments:
+	 * four arguments:
 	 * <ol>
 	 * <li>The data returned from the server, formatted according to the dataType parameter
 	 * <li>a string describing the status
+	 * <li>the response headers
+	 * <li>the {@link AjaxTimings} of the request, which do not include the callback phase yet
 	 * </ol>
 	 * @return the function
 	 */
@@ -696,10 +1056,12 @@ public class AjaxOptions
 	
 	/**
 	 * Sets the function that will be called if the request succeeds. The function will get passed 
-	 * two arguments for varargs:
+	 * four arguments for varargs:
 	 * <ol>
 	 * <li>The data returned from the server, formatted according to the dataType parameter
 	 * <li>a string describing the status
+	 * <li>the response headers
+	 * <li>the {@link AjaxTimings} of the request, which do not include the callback phase yet
 	 * </ol>
 	 * It will also receive a {@code null} Object for the
 	 * <em>javaQuery</em> parameter unless {@link #context() context} is non-null. If that is
@@ -737,6 +1099,35 @@ public class AjaxOptions
 		return this;
 	}
 	
+	/**
+	 * The maximum time (in milliseconds) from when the task is started until its response has been
+	 * received and parsed, including the time spent waiting to run, connecting, waiting for the
+	 * response and retrying. 0 (default) means no deadline.
+	 */
+	private long deadline;
+	
+	/**
+	 * Get the maximum time (in milliseconds) from when the task is started until its response has
+	 * been received and parsed.
+	 * @return the deadline, in milliseconds, or 0 if there is no deadline
+	 */
+	public long deadline() { return deadline; }
+	
+	/**
+	 * Set the maximum time (in milliseconds) from when the task is started until its response has
+	 * been received and parsed, including the time spent waiting to run, connecting, waiting for the
+	 * response and retrying. When the deadline passes, the connection is aborted, and 
+	 * {@link #error() error} receives the status 0 and the reason "timeout". The {@link #timeout() timeout} 
+	 * of each attempt is shortened to the time that remains. Default is 0, for no deadline.
+	 * @param deadline the deadline, in milliseconds
+	 * @return this
+	 */
+	public AjaxOptions deadline(long deadline)
+	{
+		this.deadline = deadline;
+		return this;
+	}
+	
 	/**
 	 * The type of request to make ("POST", "GET", "DELETE", "PUT", "HEAD", "OPTIONS", "TRACE" or "CUSTOM"), default is "GET".
 	 * @see #customRequestClass
@@ -899,12 +1290,20 @@ public class AjaxOptions
 	
 	/**
 	 * Set options to be included in all ajax requests. Requests can manually override these options
-	 * by setting them on a per-request basis.
-	 * @param options options to be included in all ajax requests
+	 * by setting them on a per-request basis. A copy of the options is stored, so changing 
+	 * {@code options} afterwards does not change the defaults. Call this method again instead.
+	 * @param options options to be included in all ajax requests, or {@code null} to clear them
 	 */
 	public static void ajaxSetup(AjaxOptions options)
 	{
-		globalOptions = options;
+		if (options == null)
+		{
+			globalOptions = null;
+			return;
+		}
+		AjaxOptions template = new AjaxOptions();
+		template.copyFrom(options);
+		globalOptions = template;
 	}
 	
 	/**
@@ -913,21 +1312,9 @@ public class AjaxOptions
 	public AjaxOptions()
 	{
 		//if #ajaxSetup has been called, this will set the global parameters.
-		if (globalOptions != null)
-		{
-			for (Field f : fields)
-			{
-				Method setter = setters.get(f.getName());
-				Method getter = getters.get(f.getName());
-				if (setter != null && getter != null)
-				{
-					try {
-						setter.invoke(this, getter.invoke(globalOptions));
-					} catch (Throwable t) {}
-				}
-				
-			}
-		}
+		AjaxOptions global = globalOptions;
+		if (global != null)
+			copyFrom(global);
 	}
 	
 	/**
@@ -938,20 +1325,64 @@ public class AjaxOptions
 	{
 		this();
 		if (source != null)
-		{
-			for (Field f : fields)
-			{
-				Method setter = setters.get(f.getName());
-				Method getter = getters.get(f.getName());
-				if (setter != null && getter != null)
-				{
-					try {
-						setter.invoke(this, getter.invoke(source));
-					} catch (Throwable t) {}
-				}
-				
-			}
-		}
+			copyFrom(source);
+	}
+	
+	/**
+	 * Copies every option from the given source. The headers, status code functions and cookies 
+	 * are shared until either Object changes them, and then the changing Object copies them first.
+	 * @param source the options to copy
+	 */
+	private void copyFrom(AjaxOptions source)
+	{
+		accepts = source.accepts;
+		async = source.async;
+		queue = source.queue;
+		beforeSend = source.beforeSend;
+		complete = source.complete;
+		contentType = source.contentType;
+		context = source.context;
+		data = source.data;
+		debug = source.debug;
+		dataFilter = source.dataFilter;
+		dataType = source.dataType;
+		SAXContentHandler = source.SAXContentHandler;
+		customXMLParser = source.customXMLParser;
+		error = source.error;
+		global = source.global;
+		cache = source.cache;
+		cacheTimeout = source.cacheTimeout;
+		compressData = source.compressData;
+		retry = source.retry;
+		circuitBreaker = source.circuitBreaker;
+		rateLimit = source.rateLimit;
+		session = source.session;
+		transport = source.transport;
+		downloadTarget = source.downloadTarget;
+		resume = source.resume;
+		progress = source.progress;
+		progressInterval = source.progressInterval;
+		coalesce = source.coalesce;
+		ifModified = source.ifModified;
+		password = source.password;
+		processDataClass = source.processDataClass;
+		success = source.success;
+		timeout = source.timeout;
+		deadline = source.deadline;
+		type = source.type;
+		imageWidth = source.imageWidth;
+		imageHeight = source.imageHeight;
+		url = source.url;
+		username = source.username;
+		customRequestClass = source.customRequestClass;
+		
+		headers = source.headers;
+		statusCode = source.statusCode;
+		cookies = source.cookies;
+		sharedHeaders = sharedStatusCode = sharedCookies = true;
+		//the global options are never changed, and always marked as shared
+		if (source != globalOptions)
+			source.sharedHeaders = source.sharedStatusCode = source.sharedCookies = true;
 	}
 	
 	/**
@@ -963,6 +1394,11 @@ public class AjaxOptions
 	public AjaxOptions(String json) throws JSONException
 	{
 		this();
+		if (json.trim().startsWith("{"))
+		{
+			handleJSONOptions(new JSONObject(json));
+			return;
+		}
 		try {
 			URL url = new URL(json);
 			url.toURI();
@@ -985,6 +1421,8 @@ public class AjaxOptions
 	
 	/**
 	 * Constructs a new AjaxOptions Object with the given Key-Value Mapping of Ajax Options values.
+	 * Option names are not case-sensitive, and values are converted to the type of the option
+	 * where possible (for example, an {@code Integer} timeout, or a {@code Map} of headers).
 	 * @param settings mapping of Ajax Options values. Can include all types - Strings, Functions, etc.
 	 */
 	public AjaxOptions(Map<String, Object> settings)
@@ -994,8 +1432,8 @@ public class AjaxOptions
 		{
 			try
 			{
-				Method m = getClass().getMethod(entry.getKey(), new Class<?>[]{entry.getValue().getClass()});
-				m.invoke(this, entry.getValue());
+				if (!AjaxOptionsBinder.set(this, entry.getKey(), entry.getValue()))
+					Log.w("AjaxOptions", "Invalid Field " + entry.getKey());
 			}
 			catch (Throwable t)
 			{
@@ -1006,6 +1444,8 @@ public class AjaxOptions
 	
 	/**
 	 * Construct a new AjaxOptions Object with the given JSONObject of Ajax Options values.
+	 * Option names are not case-sensitive, and values are converted to the type of the option
+	 * where possible.
 	 * @param json the JSONObject
 	 * @throws JSONException if the {@code json} is malformed
 	 */
@@ -1027,19 +1467,15 @@ public class AjaxOptions
 		
 	    while (iterator.hasNext()) {
 	        String key = iterator.next();
+	        Object value;
 	        try {
-	            Object value = json.get(key);
-	            for (Method m : methods)
-	            {
-	            	if (m.getName().equalsIgnoreCase(key) && m.getGenericParameterTypes().length != 0)
-	            	{
-	            		m.invoke(this, value);
-	            		break;
-	            	}
-	            }
-	            
+	            value = json.get(key);
 	        } catch (JSONException e) {
 	        	throw new JSONException("Invalid JSON String");
+	        }
+	        try {
+	            if (!AjaxOptionsBinder.set(this, key, value))
+	            	Log.w("AjaxOptions", "Could not set value " + key);
 	        } catch (Throwable t)
 	        {
 	        	if (key != null)
@@ -1050,6 +1486,15 @@ public class AjaxOptions
 	    }
 	}
 
+	/**
+	 * Checks whether or not the request sends credentials
+	 * @return {@code true} if a username or password is set. Otherwise {@code false}.
+	 */
+	boolean hasCredentials()
+	{
+		return username != null || password != null;
+	}
+	
 	/**
 	 * As a security feature, this class will not allow queries of authentication passwords. This
 	 * method will instead encode the security credentials (username and password) using
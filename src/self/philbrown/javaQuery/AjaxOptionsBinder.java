@@ -0,0 +1,307 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.JSONObject;
+
+/**
+ * Sets {@link AjaxOptions} by name, for options given as JSON or as a Map. The setters of AjaxOptions
+ * are looked up once, and indexed by their lower case name, so setting an option costs a map lookup
+ * and a direct method handle call. Values are converted to the parameter type of the setter when
+ * they do not already match it. For example, numbers are narrowed or widened to {@code int} or {@code long},
+ * strings are parsed as numbers or booleans, a JSONObject or Map becomes {@link Headers}, and a path
+ * becomes a {@link File}.
+ * @author Phil Brown
+ */
+final class AjaxOptionsBinder
+{
+	/** Returned by {@link #convert(Object, Class)} if a value cannot be converted */
+	private static final Object NO_MATCH = new Object();
+
+	/** The setters of each option, by lower case option name */
+	private static final Map<String, Setter[]> setters = index();
+
+	/**
+	 * A setter of an option
+	 */
+	private static class Setter
+	{
+		/** The parameter type */
+		final Class<?> type;
+		/** Invokes the setter. Its type is {@code (AjaxOptions, Object)void}. */
+		final MethodHandle handle;
+
+		/**
+		 * Constructor
+		 * @param type the parameter type
+		 * @param handle the setter handle
+		 */
+		Setter(Class<?> type, MethodHandle handle)
+		{
+			this.type = type;
+			this.handle = handle;
+		}
+	}
+
+	/**
+	 * Cannot be instantiated
+	 */
+	private AjaxOptionsBinder() {}
+
+	/**
+	 * Finds the setters of AjaxOptions. These are the public instance methods with one parameter.
+	 * @return the setters, by lower case name
+	 */
+	private static Map<String, Setter[]> index()
+	{
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		MethodType type = MethodType.methodType(void.class, AjaxOptions.class, Object.class);
+		Map<String, List<Setter>> found = new HashMap<String, List<Setter>>();
+		for (Method m : AjaxOptions.class.getMethods())
+		{
+			if (m.getDeclaringClass() != AjaxOptions.class || Modifier.isStatic(m.getModifiers()) || m.getParameterTypes().length != 1)
+				continue;
+			try
+			{
+				MethodHandle handle = lookup.unreflect(m).asType(type);
+				String key = m.getName().toLowerCase(Locale.US);
+				List<Setter> list = found.get(key);
+				if (list == null)
+				{
+					list = new ArrayList<Setter>();
+					found.put(key, list);
+				}
+				list.add(new Setter(m.getParameterTypes()[0], handle));
+			}
+			catch (IllegalAccessException e)
+			{
+				Log.w("AjaxOptions", "Cannot bind " + m.getName());
+			}
+		}
+		Map<String, Setter[]> index = new HashMap<String, Setter[]>();
+		for (Entry<String, List<Setter>> entry : found.entrySet())
+		{
+			List<Setter> list = entry.getValue();
+			//the order of overloads is unspecified, so sort them. Parsing setters are tried last.
+			Collections.sort(list, new Comparator<Setter>() {
+
+				@Override
+				public int compare(Setter a, Setter b) {
+					int rank = rank(a.type) - rank(b.type);
+					return rank != 0 ? rank : a.type.getName().compareTo(b.type.getName());
+				}
+			});
+			index.put(entry.getKey(), list.toArray(new Setter[list.size()]));
+		}
+		return index;
+	}
+
+	/**
+	 * Get the order in which a setter is tried, among setters with the same name
+	 * @param type the parameter type of the setter
+	 * @return the rank. Lower ranks are tried first.
+	 */
+	private static int rank(Class<?> type)
+	{
+		if (type == String.class)
+			return 2;
+		if (type == JSONObject.class)
+			return 1;
+		return 0;
+	}
+
+	/**
+	 * Sets an option
+	 * @param options the options to change
+	 * @param name the name of the option, ignoring case
+	 * @param value the value. {@code null} and {@link JSONObject#NULL} clear the option.
+	 * @return {@code true} if the option was set, or {@code false} if there is no such option, or
+	 * the value could not be converted to its type
+	 * @throws Exception if the setter throws an Exception
+	 */
+	static boolean set(AjaxOptions options, String name, Object value) throws Exception
+	{
+		Setter[] candidates = name == null ? null : setters.get(name.toLowerCase(Locale.US));
+		if (candidates == null)
+			return false;
+		if (JSONObject.NULL.equals(value))
+			value = null;
+
+		//prefer a setter that takes the value as it is
+		Setter setter = null;
+		Object argument = NO_MATCH;
+		for (Setter candidate : candidates)
+		{
+			if (value == null ? !candidate.type.isPrimitive() : box(candidate.type).isInstance(value))
+			{
+				setter = candidate;
+				argument = value;
+				break;
+			}
+		}
+		if (setter == null && value != null)
+		{
+			for (Setter candidate : candidates)
+			{
+				argument = convert(value, candidate.type);
+				if (argument != NO_MATCH)
+				{
+					setter = candidate;
+					break;
+				}
+			}
+		}
+		if (setter == null)
+			return false;
+
+		try
+		{
+			setter.handle.invokeExact(options, argument);
+		}
+		catch (Exception e)
+		{
+			throw e;
+		}
+		catch (Error e)
+		{
+			throw e;
+		}
+		catch (Throwable t)
+		{
+			throw new Exception(t);
+		}
+		return true;
+	}
+
+	/**
+	 * Converts a value to a parameter type
+	 * @param value the value, which is not {@code null}, and is not an instance of {@code type}
+	 * @param type the parameter type
+	 * @return the converted value, or {@link #NO_MATCH} if it cannot be converted
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object convert(Object value, Class<?> type)
+	{
+		try
+		{
+			if (type == int.class || type == Integer.class)
+			{
+				if (value instanceof Number)
+					return ((Number) value).intValue();
+				if (value instanceof String)
+					return Integer.valueOf(((String) value).trim());
+			}
+			else if (type == long.class || type == Long.class)
+			{
+				if (value instanceof Number)
+					return ((Number) value).longValue();
+				if (value instanceof String)
+					return Long.valueOf(((String) value).trim());
+			}
+			else if (type == double.class || type == Double.class)
+			{
+				if (value instanceof Number)
+					return ((Number) value).doubleValue();
+				if (value instanceof String)
+					return Double.valueOf(((String) value).trim());
+			}
+			else if (type == boolean.class || type == Boolean.class)
+			{
+				if (value instanceof String)
+				{
+					String string = ((String) value).trim();
+					if (string.equalsIgnoreCase("true"))
+						return Boolean.TRUE;
+					if (string.equalsIgnoreCase("false"))
+						return Boolean.FALSE;
+				}
+			}
+			else if (type == String.class)
+			{
+				if (value instanceof CharSequence || value instanceof Number || value instanceof Boolean)
+					return value.toString();
+			}
+			else if (type == Headers.class)
+			{
+				if (value instanceof JSONObject)
+					return new Headers((JSONObject) value);
+				if (value instanceof Map)
+					return new Headers(new HashMap<String, String>((Map<String, String>) value));
+				if (value instanceof String)
+					return new Headers((String) value);
+			}
+			else if (type == File.class)
+			{
+				if (value instanceof String)
+					return new File((String) value);
+			}
+			else if (type == JSONObject.class)
+			{
+				if (value instanceof Map)
+					return new JSONObject((Map<?, ?>) value);
+			}
+		}
+		catch (Exception e)
+		{
+			//not a valid value for this type
+		}
+		return NO_MATCH;
+	}
+
+	/**
+	 * Get the wrapper type of a primitive type
+	 * @param type the type
+	 * @return the wrapper type, or {@code type} if it is not primitive
+	 */
+	private static Class<?> box(Class<?> type)
+	{
+		if (!type.isPrimitive())
+			return type;
+		if (type == int.class)
+			return Integer.class;
+		if (type == long.class)
+			return Long.class;
+		if (type == boolean.class)
+			return Boolean.class;
+		if (type == double.class)
+			return Double.class;
+		if (type == float.class)
+			return Float.class;
+		if (type == short.class)
+			return Short.class;
+		if (type == byte.class)
+			return Byte.class;
+		if (type == char.class)
+			return Character.class;
+		return Void.class;
+	}
+}
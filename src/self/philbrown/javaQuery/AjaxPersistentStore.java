@@ -0,0 +1,627 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Optional on-disk tier for the {@link AjaxCache}, backed by a SQLite database. Response bodies,
+ * headers and validators are written on a background thread, in batches, so that storing a
+ * response never blocks a request. Entries are read lazily, the first time they are requested
+ * after a restart. Once the size of the stored bodies exceeds the quota, the least-recently used
+ * entries are removed. Responses to requests that send credentials, cookies or a
+ * {@link AjaxOptions#session(String) session} are never stored.
+ * <br>
+ * To use a persistent store, call:
+ * <pre>
+ * AjaxCache.getInstance().setPersistentStore(new AjaxPersistentStore(new File("ajax-cache.db"), 64 * 1024 * 1024));
+ * </pre>
+ * @author Phil Brown
+ */
+public class AjaxPersistentStore
+{
+	/** Maximum number of writes performed in one transaction */
+	private static final int MAX_BATCH_SIZE = 100;
+	/** How long (in milliseconds) the writer waits for more writes before committing a batch */
+	private static final long BATCH_DELAY = 50;
+
+	/** A stored response */
+	public static class Record
+	{
+		/** The cache key */
+		public String key;
+		/** The request URL */
+		public String url;
+		/** The response headers */
+		public Header[] headers;
+		/** The raw (decoded) response body */
+		public byte[] body;
+		/** The time (in milliseconds) the response was stored, or last revalidated */
+		public long timestamp;
+		/** The time (in milliseconds) after which the response must be revalidated */
+		public long expires;
+		/** The time (in milliseconds) until which the response may be used while it is revalidated */
+		public long staleUntil;
+		/** The ETag of the response */
+		public String etag;
+		/** The Last-Modified timestamp of the response */
+		public Date lastModified;
+	}
+
+	/** A pending write */
+	private static abstract class Write
+	{
+		/**
+		 * Perform the write
+		 * @param connection the database connection
+		 * @throws SQLException if the write fails
+		 */
+		abstract void run(Connection connection) throws SQLException;
+	}
+
+	/** The database connection. Access is synchronized on this store. */
+	private final Connection connection;
+	/** Pending writes */
+	private final BlockingQueue<Write> writes = new LinkedBlockingQueue<Write>();
+	/** The maximum size (in bytes) of all stored bodies */
+	private volatile long quota;
+	/** The size (in bytes) of all stored bodies. Counted when the database is opened, then kept up to date by each write. */
+	private long size;
+	/** Performs the pending writes */
+	private final Thread writer;
+	/** Set once the store has been closed */
+	private volatile boolean closed;
+
+	/**
+	 * Constructor. Opens (or creates) the database at the given path.
+	 * @param file the SQLite database file
+	 * @param quota the maximum size, in bytes, of all stored responses
+	 * @throws SQLException if the database cannot be opened
+	 */
+	public AjaxPersistentStore(File file, long quota) throws SQLException
+	{
+		this.quota = quota;
+		try
+		{
+			Class.forName("org.sqlite.JDBC");
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new SQLException("SQLite driver not found");
+		}
+		connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+		Statement statement = connection.createStatement();
+		try
+		{
+			statement.execute("PRAGMA journal_mode=WAL");
+			statement.execute("PRAGMA synchronous=NORMAL");
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS responses (" +
+			                        "key TEXT PRIMARY KEY, url TEXT, headers TEXT, body BLOB, size INTEGER, " +
+			                        "timestamp INTEGER, expires INTEGER, stale_until INTEGER, etag TEXT, " +
+			                        "last_modified INTEGER, last_access INTEGER)");
+			statement.executeUpdate("CREATE INDEX IF NOT EXISTS responses_last_access ON responses (last_access)");
+			ResultSet total = statement.executeQuery("SELECT SUM(size) FROM responses");
+			size = total.next() ? total.getLong(1) : 0;
+			total.close();
+		}
+		finally
+		{
+			statement.close();
+		}
+
+		writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "AjaxPersistentStore Writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Set the maximum size of all stored response bodies
+	 * @param quota the maximum size, in bytes
+	 */
+	public void setQuota(long quota)
+	{
+		this.quota = quota;
+	}
+
+	/**
+	 * Read a stored response. This reads from the database on the calling thread, so it should
+	 * not be called from the UI thread.
+	 * @param key the cache key
+	 * @return the stored response, or {@code null} if none exists
+	 */
+	public Record load(String key)
+	{
+		if (closed)
+			return null;
+		Record record = null;
+		synchronized (this)
+		{
+			try
+			{
+				PreparedStatement select = connection.prepareStatement(
+						"SELECT url, headers, body, timestamp, expires, stale_until, etag, last_modified FROM responses WHERE key = ?");
+				try
+				{
+					select.setString(1, key);
+					ResultSet result = select.executeQuery();
+					if (result.next())
+					{
+						record = new Record();
+						record.key = key;
+						record.url = result.getString(1);
+						record.headers = parseHeaders(result.getString(2));
+						record.body = result.getBytes(3);
+						record.timestamp = result.getLong(4);
+						record.expires = result.getLong(5);
+						record.staleUntil = result.getLong(6);
+						record.etag = result.getString(7);
+						long lastModified = result.getLong(8);
+						record.lastModified = result.wasNull() ? null : new Date(lastModified);
+					}
+					result.close();
+				}
+				finally
+				{
+					select.close();
+				}
+			}
+			catch (SQLException e)
+			{
+				Log.w("AjaxPersistentStore", "Could not read " + key + ": " + e.getMessage());
+				return null;
+			}
+		}
+		if (record != null)
+			touch(key);
+		return record;
+	}
+
+	/**
+	 * Store a response. The write is performed in the background.
+	 * @param record the response to store
+	 */
+	public void store(final Record record)
+	{
+		enqueue(new Write() {
+
+			@Override
+			void run(Connection connection) throws SQLException {
+				long replaced = sizeOf(connection, record.key);
+				PreparedStatement insert = connection.prepareStatement(
+						"INSERT OR REPLACE INTO responses (key, url, headers, body, size, timestamp, expires, stale_until, etag, last_modified, last_access) " +
+						"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+				try
+				{
+					insert.setString(1, record.key);
+					insert.setString(2, record.url);
+					insert.setString(3, formatHeaders(record.headers));
+					insert.setBytes(4, record.body);
+					insert.setLong(5, record.body.length);
+					insert.setLong(6, record.timestamp);
+					insert.setLong(7, record.expires);
+					insert.setLong(8, record.staleUntil);
+					insert.setString(9, record.etag);
+					if (record.lastModified == null)
+						insert.setNull(10, java.sql.Types.INTEGER);
+					else
+						insert.setLong(10, record.lastModified.getTime());
+					insert.setLong(11, System.currentTimeMillis());
+					insert.executeUpdate();
+					size += record.body.length - replaced;
+				}
+				finally
+				{
+					insert.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Update the expiration and validators of a stored response after it was revalidated.
+	 * The write is performed in the background.
+	 * @param entry the revalidated entry
+	 */
+	public void refresh(final AjaxCache.Entry entry)
+	{
+		enqueue(new Write() {
+
+			@Override
+			void run(Connection connection) throws SQLException {
+				PreparedStatement update = connection.prepareStatement(
+						"UPDATE responses SET timestamp = ?, expires = ?, stale_until = ?, etag = ?, last_modified = ?, last_access = ? WHERE key = ?");
+				try
+				{
+					update.setLong(1, entry.timestamp);
+					update.setLong(2, entry.expires);
+					update.setLong(3, entry.staleUntil);
+					update.setString(4, entry.etag);
+					if (entry.lastModified == null)
+						update.setNull(5, java.sql.Types.INTEGER);
+					else
+						update.setLong(5, entry.lastModified.getTime());
+					update.setLong(6, System.currentTimeMillis());
+					update.setString(7, entry.key);
+					update.executeUpdate();
+				}
+				finally
+				{
+					update.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Remove a stored response. The write is performed in the background.
+	 * @param key the cache key
+	 */
+	public void remove(final String key)
+	{
+		enqueue(new Write() {
+
+			@Override
+			void run(Connection connection) throws SQLException {
+				long removed = sizeOf(connection, key);
+				PreparedStatement delete = connection.prepareStatement("DELETE FROM responses WHERE key = ?");
+				try
+				{
+					delete.setString(1, key);
+					delete.executeUpdate();
+					size -= removed;
+				}
+				finally
+				{
+					delete.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Remove all stored responses whose URL starts with the given prefix. The write is performed
+	 * in the background.
+	 * @param urlPrefix the URL prefix
+	 */
+	public void invalidate(final String urlPrefix)
+	{
+		enqueue(new Write() {
+
+			@Override
+			void run(Connection connection) throws SQLException {
+				PreparedStatement removed = connection.prepareStatement("SELECT SUM(size) FROM responses WHERE substr(url, 1, ?) = ?");
+				try
+				{
+					removed.setInt(1, urlPrefix.length());
+					removed.setString(2, urlPrefix);
+					ResultSet result = removed.executeQuery();
+					if (result.next())
+						size -= result.getLong(1);
+					result.close();
+				}
+				finally
+				{
+					removed.close();
+				}
+				PreparedStatement delete = connection.prepareStatement("DELETE FROM responses WHERE substr(url, 1, ?) = ?");
+				try
+				{
+					delete.setInt(1, urlPrefix.length());
+					delete.setString(2, urlPrefix);
+					delete.executeUpdate();
+				}
+				finally
+				{
+					delete.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Remove all stored responses. The write is performed in the background.
+	 */
+	public void clear()
+	{
+		enqueue(new Write() {
+
+			@Override
+			void run(Connection connection) throws SQLException {
+				Statement delete = connection.createStatement();
+				try
+				{
+					delete.executeUpdate("DELETE FROM responses");
+					size = 0;
+				}
+				finally
+				{
+					delete.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes all pending changes, then closes the database.
+	 */
+	public void close()
+	{
+		closed = true;
+		writer.interrupt();
+		try
+		{
+			writer.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this)
+		{
+			try
+			{
+				connection.close();
+			}
+			catch (SQLException e)
+			{
+				Log.w("AjaxPersistentStore", "Could not close database: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Updates the last access time of a stored response, which is used to decide which
+	 * responses to remove once the quota is exceeded.
+	 * @param key the cache key
+	 */
+	private void touch(final String key)
+	{
+		final long now = System.currentTimeMillis();
+		enqueue(new Write() {
+
+			@Override
+			void run(Connection connection) throws SQLException {
+				PreparedStatement update = connection.prepareStatement("UPDATE responses SET last_access = ? WHERE key = ?");
+				try
+				{
+					update.setLong(1, now);
+					update.setString(2, key);
+					update.executeUpdate();
+				}
+				finally
+				{
+					update.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Add a write to the queue
+	 * @param write the write to perform
+	 */
+	private void enqueue(Write write)
+	{
+		if (!closed)
+			writes.offer(write);
+	}
+
+	/**
+	 * Run by the writer thread. Waits for writes, then performs them in batches.
+	 */
+	private void writeLoop()
+	{
+		List<Write> batch = new ArrayList<Write>(MAX_BATCH_SIZE);
+		while (true)
+		{
+			try
+			{
+				if (closed)
+				{
+					writes.drainTo(batch);
+					if (!batch.isEmpty())
+						commit(batch);
+					return;
+				}
+				Write first = writes.take();
+				batch.add(first);
+				//give other writes a chance to join this batch
+				Write next;
+				while (batch.size() < MAX_BATCH_SIZE && (next = writes.poll(BATCH_DELAY, TimeUnit.MILLISECONDS)) != null)
+				{
+					batch.add(next);
+				}
+				commit(batch);
+				batch.clear();
+			}
+			catch (InterruptedException e)
+			{
+				//the store is being closed. Any writes in the current batch are committed with the rest.
+			}
+		}
+	}
+
+	/**
+	 * Performs a batch of writes in one transaction, then enforces the quota.
+	 * @param batch the writes to perform
+	 */
+	private synchronized void commit(List<Write> batch)
+	{
+		long committed = size;
+		try
+		{
+			connection.setAutoCommit(false);
+			for (Write write : batch)
+			{
+				write.run(connection);
+			}
+			trim();
+			connection.commit();
+		}
+		catch (SQLException e)
+		{
+			Log.w("AjaxPersistentStore", "Could not write responses: " + e.getMessage());
+			size = committed;
+			try
+			{
+				connection.rollback();
+			}
+			catch (SQLException e2)
+			{
+				//nothing else can be done
+			}
+		}
+		finally
+		{
+			try
+			{
+				connection.setAutoCommit(true);
+			}
+			catch (SQLException e)
+			{
+				//nothing else can be done
+			}
+		}
+	}
+
+	/**
+	 * Get the size of a stored body
+	 * @param connection the database connection
+	 * @param key the cache key
+	 * @return the size, in bytes, or 0 if no response is stored for the key
+	 * @throws SQLException if the database cannot be read
+	 */
+	private static long sizeOf(Connection connection, String key) throws SQLException
+	{
+		PreparedStatement query = connection.prepareStatement("SELECT size FROM responses WHERE key = ?");
+		try
+		{
+			query.setString(1, key);
+			ResultSet result = query.executeQuery();
+			long size = result.next() ? result.getLong(1) : 0;
+			result.close();
+			return size;
+		}
+		finally
+		{
+			query.close();
+		}
+	}
+
+	/**
+	 * Removes the least-recently used responses until the size of the stored bodies is within
+	 * the quota.
+	 * @throws SQLException if the database cannot be read or written
+	 */
+	private void trim() throws SQLException
+	{
+		if (size <= quota)
+			return;
+		Statement statement = connection.createStatement();
+		try
+		{
+			long remaining = size;
+			List<String> keys = new ArrayList<String>();
+			ResultSet oldest = statement.executeQuery("SELECT key, size FROM responses ORDER BY last_access ASC");
+			while (remaining > quota && oldest.next())
+			{
+				keys.add(oldest.getString(1));
+				remaining -= oldest.getLong(2);
+			}
+			oldest.close();
+
+			PreparedStatement delete = connection.prepareStatement("DELETE FROM responses WHERE key = ?");
+			try
+			{
+				for (String key : keys)
+				{
+					delete.setString(1, key);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+				size = remaining;
+			}
+			finally
+			{
+				delete.close();
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+	/**
+	 * Serialize headers, one per line
+	 * @param headers the headers
+	 * @return the serialized headers
+	 */
+	private static String formatHeaders(Header[] headers)
+	{
+		StringBuilder builder = new StringBuilder();
+		if (headers != null)
+		{
+			for (Header header : headers)
+			{
+				builder.append(header.getName()).append(": ").append(header.getValue()).append('\n');
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Parse headers that were serialized by {@link #formatHeaders(Header[])}
+	 * @param headers the serialized headers
+	 * @return the headers
+	 */
+	private static Header[] parseHeaders(String headers)
+	{
+		List<Header> parsed = new ArrayList<Header>();
+		if (headers != null)
+		{
+			for (String line : headers.split("\n"))
+			{
+				int separator = line.indexOf(": ");
+				if (separator > 0)
+					parsed.add(new BasicHeader(line.substring(0, separator), line.substring(separator + 2)));
+			}
+		}
+		return parsed.toArray(new Header[parsed.size()]);
+	}
+}
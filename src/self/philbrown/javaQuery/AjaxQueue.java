@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+
+/**
+ * Named serial queues of {@link AjaxTask Ajax Tasks}. The tasks of a queue run one at a time, in the
+ * order they were started, while other queues and unqueued tasks run in parallel. Nothing blocks while
+ * a task waits for its turn: the task is kept in the queue, and is handed to its executor once the
+ * task before it has finished. A queue only exists while it has a running task.
+ * @author Phil Brown
+ * @see AjaxOptions#queue(String)
+ */
+final class AjaxQueue
+{
+	/** The queues that have a running task, by name */
+	private static final ConcurrentHashMap<String, AjaxQueue> queues = new ConcurrentHashMap<String, AjaxQueue>();
+
+	/** The tasks waiting for the running task to finish, in order. Guarded by the {@link #queues} entry. */
+	private final ArrayDeque<Item> waiting = new ArrayDeque<Item>();
+
+	/**
+	 * A queued task
+	 */
+	private static class Item implements AjaxScheduler.Rejectable
+	{
+		/** The name of the queue */
+		final String queue;
+		/** Runs the task */
+		final Runnable runnable;
+		/** Where the task runs */
+		final Executor executor;
+
+		/**
+		 * Constructor
+		 * @param queue the name of the queue
+		 * @param runnable runs the task
+		 * @param executor where the task runs
+		 */
+		Item(String queue, Runnable runnable, Executor executor)
+		{
+			this.queue = queue;
+			this.runnable = runnable;
+			this.executor = executor;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				runnable.run();
+			}
+			finally
+			{
+				next(queue);
+			}
+		}
+
+		@Override
+		public void rejected()
+		{
+			try
+			{
+				if (runnable instanceof AjaxScheduler.Rejectable)
+					((AjaxScheduler.Rejectable) runnable).rejected();
+			}
+			finally
+			{
+				next(queue);
+			}
+		}
+	}
+
+	/**
+	 * Cannot be instantiated outside of this class
+	 */
+	private AjaxQueue() {}
+
+	/**
+	 * Get an executor that runs tasks on a queue
+	 * @param queue the name of the queue
+	 * @param executor where each task runs once it is its turn
+	 * @return the executor
+	 */
+	static Executor executor(final String queue, final Executor executor)
+	{
+		return new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				enqueue(new Item(queue, command, executor));
+			}
+		};
+	}
+
+	/**
+	 * Runs a task now if its queue is idle. Otherwise, adds it to the end of the queue.
+	 * @param item the task
+	 */
+	private static void enqueue(final Item item)
+	{
+		final boolean[] idle = new boolean[1];
+		queues.compute(item.queue, new BiFunction<String, AjaxQueue, AjaxQueue>() {
+
+			@Override
+			public AjaxQueue apply(String name, AjaxQueue queue) {
+				if (queue == null)
+				{
+					idle[0] = true;
+					return new AjaxQueue();
+				}
+				queue.waiting.add(item);
+				return queue;
+			}
+		});
+		if (idle[0])
+			item.executor.execute(item);
+	}
+
+	/**
+	 * Runs the next task of a queue, once its running task has finished. The queue is removed if it is empty.
+	 * @param name the name of the queue
+	 */
+	private static void next(String name)
+	{
+		final Item[] next = new Item[1];
+		queues.computeIfPresent(name, new BiFunction<String, AjaxQueue, AjaxQueue>() {
+
+			@Override
+			public AjaxQueue apply(String name, AjaxQueue queue) {
+				next[0] = queue.waiting.poll();
+				return next[0] == null ? null : queue;
+			}
+		});
+		if (next[0] != null)
+			next[0].executor.execute(next[0]);
+	}
+}
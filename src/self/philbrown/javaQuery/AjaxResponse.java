@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import org.apache.http.Header;
+
+/**
+ * The successful result of an Ajax request made with {@link $#ajaxAsync(AjaxOptions)}
+ * @author Phil Brown
+ */
+public class AjaxResponse
+{
+	/** The parsed response body */
+	private final Object body;
+	/** The HTTP status code */
+	private final int status;
+	/** The status text */
+	private final String reason;
+	/** The response headers */
+	private final Header[] headers;
+	/** The options used to make the request */
+	private final AjaxOptions options;
+	/** The time spent in each phase of the request */
+	private final AjaxTimings timings;
+
+	/**
+	 * Constructor
+	 * @param body the parsed response body
+	 * @param status the HTTP status code
+	 * @param reason the status text
+	 * @param headers the response headers. May be {@code null} for cached responses.
+	 * @param options the options used to make the request
+	 * @param timings the time spent in each phase of the request
+	 */
+	AjaxResponse(Object body, int status, String reason, Header[] headers, AjaxOptions options, AjaxTimings timings)
+	{
+		this.body = body;
+		this.status = status;
+		this.reason = reason;
+		this.headers = headers == null ? new Header[0] : headers;
+		this.options = options;
+		this.timings = timings;
+	}
+
+	/**
+	 * Get the response body, parsed according to the {@link AjaxOptions#dataType() dataType}
+	 * @return the parsed response
+	 */
+	public Object body()
+	{
+		return body;
+	}
+
+	/**
+	 * Get the response body, parsed according to the {@link AjaxOptions#dataType() dataType}, as the given type
+	 * @param type the expected type, such as {@code String.class} for "text" or {@code org.json.JSONObject.class}
+	 * for "json".
+	 * @return the parsed response
+	 * @throws ClassCastException if the response is not of the given type
+	 */
+	public <T> T body(Class<T> type)
+	{
+		return type.cast(body);
+	}
+
+	/**
+	 * Get the HTTP status code. Responses served from the {@link AjaxCache} report 200.
+	 * @return the status code
+	 */
+	public int status()
+	{
+		return status;
+	}
+
+	/**
+	 * Get the status text
+	 * @return the status text
+	 */
+	public String reason()
+	{
+		return reason;
+	}
+
+	/**
+	 * Get the response headers. Responses served from the {@link AjaxCache} have no headers.
+	 * @return the headers
+	 */
+	public Header[] headers()
+	{
+		return headers;
+	}
+
+	/**
+	 * Get the value of the first response header with the given name
+	 * @param name the header name (case-insensitive)
+	 * @return the header value, or {@code null} if the response does not include the header
+	 */
+	public String header(String name)
+	{
+		for (Header header : headers)
+		{
+			if (header.getName().equalsIgnoreCase(name))
+				return header.getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * Get the options used to make the request
+	 * @return the options
+	 */
+	public AjaxOptions options()
+	{
+		return options;
+	}
+
+	/**
+	 * Get the time spent in each phase of the request, including the callbacks
+	 * @return the timings
+	 */
+	public AjaxTimings timings()
+	{
+		return timings;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("AjaxResponse[%d %s, %s]", status, reason, body);
+	}
+}
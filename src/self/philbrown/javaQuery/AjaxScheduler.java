@@ -0,0 +1,628 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the background work of {@link AjaxTask Ajax Tasks}. Each host has its own queue and a
+ * limit on the number of requests that may run at once, so that a slow host cannot occupy every
+ * worker thread. Hosts with queued requests are served in round-robin order, and the total number
+ * of requests that run at once is also limited. When many requests should run at once (for example,
+ * in the {@link AsyncTask.ExecutionMode#VIRTUAL VIRTUAL} execution mode), raise both these limits
+ * and those of the {@link AjaxClient} connection pool.
+ * @author Phil Brown
+ */
+public class AjaxScheduler
+{
+	/** Default maximum number of requests that can run at once */
+	private static final int DEFAULT_MAX_CONCURRENT = 64;
+	/** Default maximum number of requests that can run at once for a single host */
+	private static final int DEFAULT_MAX_PER_HOST = 6;
+	/** Amount of time (in seconds) an idle worker thread is kept */
+	private static final int KEEP_ALIVE = 10;
+
+	/** Shared instance */
+	private static AjaxScheduler instance;
+
+	/** Guards the queues and counters */
+	private final Object lock = new Object();
+	/** Queues, by host */
+	private final Map<String, Host> hosts = new HashMap<String, Host>();
+	/** Hosts that have queued requests and can start another request, in round-robin order */
+	private final LinkedList<Host> ready = new LinkedList<Host>();
+	/** Per-host limits that override {@link #maxPerHost} */
+	private final Map<String, Integer> hostLimits = new HashMap<String, Integer>();
+	/** Number of running requests */
+	private int active;
+	/** Maximum number of requests that can run at once */
+	private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+	/** Maximum number of requests that can run at once for a single host */
+	private int maxPerHost = DEFAULT_MAX_PER_HOST;
+	/** Runs the requests. The number of threads is bounded by {@link #maxConcurrent}. */
+	private final ThreadPoolExecutor workers;
+	/** Runs delayed work, such as request deadlines. Created when first needed. */
+	private ScheduledThreadPoolExecutor timer;
+
+	/**
+	 * Work that is told when the scheduler cannot start it, so that it can fail instead of waiting forever.
+	 * Other work is cancelled if it is a {@link Future}.
+	 */
+	interface Rejectable extends Runnable
+	{
+		/**
+		 * Called instead of {@link #run()} when the work was rejected by its executor
+		 */
+		void rejected();
+	}
+
+	/**
+	 * A queued request
+	 */
+	private static class Queued
+	{
+		/** The work to run */
+		final Runnable runnable;
+		/** When the request was queued */
+		final long queued;
+
+		/**
+		 * Constructor
+		 * @param runnable the work to run
+		 */
+		Queued(Runnable runnable)
+		{
+			this.runnable = runnable;
+			this.queued = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * The queue and counters of a single host
+	 */
+	private class Host
+	{
+		/** The host name (and port) */
+		final String name;
+		/** Requests waiting to run */
+		final ArrayDeque<Queued> queue = new ArrayDeque<Queued>();
+		/** Number of running requests */
+		int active;
+		/** Whether or not this host is in the {@link AjaxScheduler#ready ready} list */
+		boolean scheduled;
+		/** Number of requests that have been started */
+		long started;
+		/** Total time (in milliseconds) started requests spent in the queue */
+		long totalWait;
+		/** Longest time (in milliseconds) a started request spent in the queue */
+		long maxWait;
+
+		/**
+		 * Constructor
+		 * @param name the host name
+		 */
+		Host(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Get the maximum number of requests that can run at once for this host
+		 * @return the limit
+		 */
+		int limit()
+		{
+			Integer limit = hostLimits.get(name);
+			return limit != null ? limit : maxPerHost;
+		}
+
+		/**
+		 * Checks whether or not another request can be started for this host
+		 * @return {@code true} if a request is queued and the host limit has not been reached
+		 */
+		boolean canStart()
+		{
+			return !queue.isEmpty() && active < limit();
+		}
+	}
+
+	/**
+	 * A snapshot of the scheduling statistics of a single host
+	 */
+	public static class HostStats
+	{
+		/** The host name (and port) */
+		public String host;
+		/** Number of requests waiting to run */
+		public int queued;
+		/** Number of running requests */
+		public int active;
+		/** Maximum number of requests that can run at once */
+		public int limit;
+		/** Number of requests that have been started */
+		public long started;
+		/** Average time (in milliseconds) started requests spent in the queue */
+		public long averageWait;
+		/** Longest time (in milliseconds) a started request spent in the queue */
+		public long maxWait;
+		/** Time (in milliseconds) the oldest queued request has been waiting */
+		public long oldestWait;
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s[queued=%d, active=%d/%d, started=%d, averageWait=%dms, maxWait=%dms, oldestWait=%dms]",
+					             host, queued, active, limit, started, averageWait, maxWait, oldestWait);
+		}
+	}
+
+	/**
+	 * Constructor
+	 */
+	public AjaxScheduler()
+	{
+		workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+				                         new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "AjaxScheduler #" + count.getAndIncrement());
+			}
+		});
+	}
+
+	/**
+	 * Get the scheduler used by all Ajax Tasks
+	 * @return the shared scheduler
+	 */
+	public static synchronized AjaxScheduler getInstance()
+	{
+		if (instance == null)
+			instance = new AjaxScheduler();
+		return instance;
+	}
+
+	/**
+	 * Get the host name (and port, if set) of the given URL, which is used to select a queue.
+	 * @param url the URL
+	 * @return the host, or an empty String if the URL cannot be parsed
+	 */
+	public static String host(String url)
+	{
+		try
+		{
+			URI uri = new URI(url);
+			if (uri.getHost() == null)
+				return "";
+			if (uri.getPort() == -1)
+				return uri.getHost().toLowerCase();
+			return uri.getHost().toLowerCase() + ":" + uri.getPort();
+		}
+		catch (Throwable t)
+		{
+			return "";
+		}
+	}
+
+	/**
+	 * Get an Executor that queues work for the given host
+	 * @param host the host, as returned by {@link #host(String)}
+	 * @return the executor
+	 */
+	public Executor executor(final String host)
+	{
+		return new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				submit(host, command);
+			}
+		};
+	}
+
+	/**
+	 * Queue work for the given host. The work is run once the host and global limits allow.
+	 * @param host the host, as returned by {@link #host(String)}
+	 * @param runnable the work to run
+	 */
+	public void submit(String host, Runnable runnable)
+	{
+		List<Runnable> start;
+		synchronized (lock)
+		{
+			Host h = hosts.get(host);
+			if (h == null)
+			{
+				h = new Host(host);
+				hosts.put(host, h);
+			}
+			h.queue.add(new Queued(runnable));
+			schedule(h);
+			start = drain();
+		}
+		start(start);
+	}
+
+	/**
+	 * Runs work after a delay, on a single shared timer thread. The work must be short, and must not block.
+	 * @param runnable the work to run
+	 * @param delay the delay, in milliseconds
+	 * @return the scheduled work, which can be cancelled
+	 */
+	ScheduledFuture<?> scheduleAfter(Runnable runnable, long delay)
+	{
+		ScheduledThreadPoolExecutor t;
+		synchronized (this)
+		{
+			if (timer == null)
+			{
+				timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "AjaxScheduler Timer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				//cancelled work, such as the deadlines of finished requests, is removed at once
+				timer.setRemoveOnCancelPolicy(true);
+			}
+			t = timer;
+		}
+		return t.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Set the maximum number of requests that can run at once, across all hosts. Default is 64.
+	 * @param max the maximum number of requests
+	 */
+	public void setMaxConcurrentRequests(int max)
+	{
+		List<Runnable> start;
+		synchronized (lock)
+		{
+			maxConcurrent = max;
+			start = drain();
+		}
+		start(start);
+	}
+
+	/**
+	 * Set the maximum number of requests that can run at once for a single host. Default is 6.
+	 * @param max the maximum number of requests
+	 */
+	public void setMaxRequestsPerHost(int max)
+	{
+		List<Runnable> start;
+		synchronized (lock)
+		{
+			maxPerHost = max;
+			for (Host h : hosts.values())
+				schedule(h);
+			start = drain();
+		}
+		start(start);
+	}
+
+	/**
+	 * Set the maximum number of requests that can run at once for the given host. This overrides
+	 * the {@link #setMaxRequestsPerHost(int) default per-host limit}.
+	 * @param host the host name, with the port if the URLs include one (for example, "example.com:8080")
+	 * @param max the maximum number of requests, or a negative value to use the default limit
+	 */
+	public void setMaxRequestsPerHost(String host, int max)
+	{
+		List<Runnable> start;
+		synchronized (lock)
+		{
+			if (max < 0)
+				hostLimits.remove(host.toLowerCase());
+			else
+				hostLimits.put(host.toLowerCase(), max);
+			Host h = hosts.get(host.toLowerCase());
+			if (h != null)
+				schedule(h);
+			start = drain();
+		}
+		start(start);
+	}
+
+	/**
+	 * Get the scheduling statistics of the given host
+	 * @param host the host, as returned by {@link #host(String)}
+	 * @return the statistics, or {@code null} if no requests have been made to the host
+	 */
+	public HostStats getStats(String host)
+	{
+		synchronized (lock)
+		{
+			Host h = hosts.get(host);
+			if (h == null)
+				return null;
+			return stats(h, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Get the scheduling statistics of every host that requests have been made to
+	 * @return the statistics, by host
+	 */
+	public Map<String, HostStats> getStats()
+	{
+		Map<String, HostStats> stats = new HashMap<String, HostStats>();
+		synchronized (lock)
+		{
+			long now = System.currentTimeMillis();
+			for (Host h : hosts.values())
+				stats.put(h.name, stats(h, now));
+		}
+		return stats;
+	}
+
+	/**
+	 * Get the number of requests that are running
+	 * @return the number of running requests
+	 */
+	public int getActiveCount()
+	{
+		synchronized (lock)
+		{
+			return active;
+		}
+	}
+
+	/**
+	 * Get the number of requests that are waiting to run
+	 * @return the number of queued requests
+	 */
+	public int getQueuedCount()
+	{
+		synchronized (lock)
+		{
+			int queued = 0;
+			for (Host h : hosts.values())
+				queued += h.queue.size();
+			return queued;
+		}
+	}
+
+	/**
+	 * Removes all requests that are waiting to run. They are rejected, so that they fail instead of waiting forever.
+	 */
+	public void clearQueue()
+	{
+		List<Runnable> removed = new ArrayList<Runnable>();
+		synchronized (lock)
+		{
+			for (Host h : hosts.values())
+			{
+				for (Queued queued : h.queue)
+					removed.add(queued.runnable);
+				h.queue.clear();
+				h.scheduled = false;
+			}
+			ready.clear();
+		}
+		for (Runnable runnable : removed)
+			reject(runnable);
+	}
+
+	/**
+	 * Creates a snapshot of the statistics of a host. Must be called while holding {@link #lock}.
+	 * @param h the host
+	 * @param now the current time
+	 * @return the statistics
+	 */
+	private HostStats stats(Host h, long now)
+	{
+		HostStats stats = new HostStats();
+		stats.host = h.name;
+		stats.queued = h.queue.size();
+		stats.active = h.active;
+		stats.limit = h.limit();
+		stats.started = h.started;
+		stats.averageWait = h.started == 0 ? 0 : h.totalWait / h.started;
+		stats.maxWait = h.maxWait;
+		Queued oldest = h.queue.peek();
+		stats.oldestWait = oldest == null ? 0 : now - oldest.queued;
+		return stats;
+	}
+
+	/**
+	 * Adds the host to the end of the {@link #ready} list if it can start a request.
+	 * Must be called while holding {@link #lock}.
+	 * @param h the host
+	 */
+	private void schedule(Host h)
+	{
+		if (!h.scheduled && h.canStart())
+		{
+			h.scheduled = true;
+			ready.addLast(h);
+		}
+	}
+
+	/**
+	 * Takes one request from each ready host in turn, until the global limit is reached.
+	 * Must be called while holding {@link #lock}.
+	 * @return the requests to start
+	 */
+	private List<Runnable> drain()
+	{
+		List<Runnable> start = null;
+		long now = System.currentTimeMillis();
+		while (active < maxConcurrent && !ready.isEmpty())
+		{
+			Host h = ready.removeFirst();
+			h.scheduled = false;
+			if (!h.canStart())
+				continue;
+			Queued queued = h.queue.poll();
+			h.active++;
+			active++;
+			long wait = now - queued.queued;
+			h.started++;
+			h.totalWait += wait;
+			if (wait > h.maxWait)
+				h.maxWait = wait;
+			//the host goes to the back of the line, so that other hosts get a turn
+			schedule(h);
+			if (start == null)
+				start = new ArrayList<Runnable>();
+			start.add(wrap(h, queued.runnable));
+		}
+		return start;
+	}
+
+	/**
+	 * Starts the given requests on worker threads, or on virtual threads if the 
+	 * {@link AsyncTask#setExecutionMode(AsyncTask.ExecutionMode, int) execution mode} is 
+	 * {@link AsyncTask.ExecutionMode#VIRTUAL VIRTUAL}. Requests that the executor rejects give back their
+	 * slots, and fail. Must not be called while holding {@link #lock}.
+	 * @param start the requests to start. May be {@code null}.
+	 */
+	private void start(List<Runnable> start)
+	{
+		while (start != null)
+		{
+			Executor executor = workers;
+			if (AsyncTask.getExecutionMode() == AsyncTask.ExecutionMode.VIRTUAL)
+				executor = AsyncTask.getDefaultExecutor();
+			List<Started> rejected = null;
+			for (Runnable runnable : start)
+			{
+				try
+				{
+					executor.execute(runnable);
+				}
+				catch (RejectedExecutionException e)
+				{
+					Log.e("AjaxScheduler", "Could not start request");
+					if (rejected == null)
+						rejected = new ArrayList<Started>();
+					rejected.add((Started) runnable);
+				}
+			}
+			if (rejected == null)
+				return;
+			synchronized (lock)
+			{
+				for (Started r : rejected)
+				{
+					r.host.active--;
+					active--;
+					schedule(r.host);
+				}
+				start = drain();
+			}
+			for (Started r : rejected)
+				r.reject();
+		}
+	}
+
+	/**
+	 * Wraps a request so that the next queued request is started once it finishes
+	 * @param h the host of the request
+	 * @param runnable the request
+	 * @return the wrapped request
+	 */
+	private Runnable wrap(Host h, Runnable runnable)
+	{
+		return new Started(h, runnable);
+	}
+
+	/**
+	 * A request that has been given a slot. The next queued request is started once it finishes.
+	 */
+	private class Started implements Runnable
+	{
+		/** The host of the request */
+		final Host host;
+		/** The request */
+		final Runnable runnable;
+
+		/**
+		 * Constructor
+		 * @param host the host of the request
+		 * @param runnable the request
+		 */
+		Started(Host host, Runnable runnable)
+		{
+			this.host = host;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				runnable.run();
+			}
+			finally
+			{
+				List<Runnable> start;
+				synchronized (lock)
+				{
+					host.active--;
+					active--;
+					schedule(host);
+					start = drain();
+				}
+				start(start);
+			}
+		}
+
+		/**
+		 * Fails the request, which could not be started
+		 */
+		void reject()
+		{
+			AjaxScheduler.reject(runnable);
+		}
+	}
+
+	/**
+	 * Fails work that will not be run. Must not be called while holding {@link #lock}.
+	 * @param runnable the work
+	 */
+	private static void reject(Runnable runnable)
+	{
+		if (runnable instanceof Rejectable)
+			((Rejectable) runnable).rejected();
+		else if (runnable instanceof Future)
+			((Future<?>) runnable).cancel(false);
+	}
+}
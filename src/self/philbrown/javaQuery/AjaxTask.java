@@ -17,31 +17,42 @@
 package self.philbrown.javaQuery;
 
 import java.awt.Image;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Semaphore;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.CookieStore;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
@@ -51,16 +62,21 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpTrace;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.cookie.BasicClientCookie;
-import org.apache.http.params.BasicHttpParams;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
@@ -78,29 +94,45 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 	/** Options used to configure this task */
 	private AjaxOptions options;
 	/** The HTTP Request to perform */
-	private HttpUriRequest request = null;
+	private volatile HttpUriRequest request = null;
+	/** Set for tasks that refresh a stale cached response in the background */
+	private boolean revalidation;
+	/** The cached response that is being refreshed by this task, if {@link #revalidation} is set */
+	private AjaxCache.Entry revalidatedEntry;
+	/** Set once {@link #onPreExecute()} has run, so that it is not run again if a coalesced task must be executed */
+	private boolean preExecuted;
+	/** The key of this task in {@link #inFlight}, if identical requests can be coalesced with this task */
+	private String coalesceKey;
+	/** 
+	 * Tasks that will receive the response of this task. Set to {@code null} once the response has 
+	 * been dispatched, after which no more tasks can be added. Access is synchronized on this task.
+	 */
+	private List<AjaxTask> followers;
+	/** The task this task is coalesced with, if any */
+	private volatile AjaxTask leader;
+	/** Completed with the response of this task, if the task was started by {@link $#ajaxAsync(AjaxOptions)} */
+	private volatile AjaxFuture future;
+	/** The time spent in each phase of this task */
+	private final AjaxTimings timings = new AjaxTimings();
+	/** When the {@link AjaxOptions#deadline() deadline} passes, as a {@link System#nanoTime()} value, or 0 if there is no deadline */
+	private long deadline;
+	/** Set once the deadline has passed */
+	private volatile boolean expired;
+	/** Set when the scheduler could not start the task */
+	private volatile boolean rejected;
+	/** Aborts the request when the deadline passes */
+	private volatile ScheduledFuture<?> watchdog;
 	
-	/** Used for synchronous operations. */
-	private static Semaphore mutex = new Semaphore(1);
-	/** Contains the current non-global tasks */
-	private static volatile List<AjaxTask> localTasks = new ArrayList<AjaxTask>();
-	/** Contains the current global tasks */
-	private static volatile List<AjaxTask> globalTasks = new ArrayList<AjaxTask>();
-	/** Represents a cached HTTP response */
-	class CachedResponse
-	{
-		/** The response Object */
-		public Object response;
-		/** The Last-Requested timestamp */
-		public Date timestamp;
-		/** The Last-Modified timestamp */
-		public Date lastModified;
-	}
+	/** Contains the current tasks */
+	private static final Set<AjaxTask> tasks = ConcurrentHashMap.newKeySet();
 	/** 
-	 * Keeps track of the responses made by each URL. This cache will be used for caching and
-	 * modified headers. 
+	 * Number of current global tasks, plus the number of {@link #enterGlobal() holds} that keep global
+	 * Ajax activity from ending. {@link $#ajaxStart()} is invoked when it rises from 0, and 
+	 * {@link $#ajaxStop()} when it falls to 0.
 	 */
-	private static volatile Map<String, CachedResponse> URLresponses = new HashMap<String, CachedResponse>();
+	private static final AtomicInteger globalActivity = new AtomicInteger();
+	/** In-progress tasks that identical requests can be coalesced with */
+	private static final ConcurrentHashMap<String, AjaxTask> inFlight = new ConcurrentHashMap<String, AjaxTask>();
 	
 	/**
 	 * Constructor
@@ -142,48 +174,386 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 	 */
 	public static void killTasks()
 	{
-		for (AjaxTask task : globalTasks) {
-			task.cancel(true);
-		}
-		for (AjaxTask task : localTasks) {
-			task.cancel(true);
+		//cancelled tasks unregister themselves, which the concurrent set allows while iterating.
+		//Aborting the requests frees their worker threads at once.
+		for (AjaxTask task : tasks) {
+			task.abort();
 		}
-		globalTasks.clear();
-		localTasks.clear();
-		$.ajaxStop();
+		inFlight.clear();
 		
 	}
 	
-	@Override
-	protected void onPreExecute()
+	/**
+	 * Get a snapshot of the current tasks, for diagnostics
+	 * @return the URL, age and state of each task, oldest first
+	 */
+	public static List<RequestInfo> getActiveRequests()
 	{
-		if (!options.async())
+		long now = System.nanoTime();
+		List<RequestInfo> requests = new ArrayList<RequestInfo>();
+		for (AjaxTask task : tasks)
 		{
-			try {
-				mutex.acquire();
-			} catch (InterruptedException e) {
-				Log.w("AjaxTask", "Synchronization Error. Running Task Async");
+			requests.add(task.info(now));
+		}
+		Collections.sort(requests, new Comparator<RequestInfo>() {
+
+			@Override
+			public int compare(RequestInfo a, RequestInfo b) {
+				return Long.compare(b.age, a.age);
 			}
+		});
+		return requests;
+	}
+	
+	/**
+	 * Creates the diagnostic information of this task
+	 * @param now the current {@link System#nanoTime()}
+	 * @return the information
+	 */
+	private RequestInfo info(long now)
+	{
+		RequestInfo info = new RequestInfo();
+		info.url = options.url();
+		HttpUriRequest r = request;
+		info.method = r != null ? r.getMethod() : (options.type() != null ? options.type().toUpperCase(Locale.US) : "GET");
+		info.global = options.global();
+		info.coalesced = leader != null;
+		info.attempts = timings.attempts;
+		info.age = timings.queued == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(now - timings.queued);
+		if (timings.callbackStarted != 0)
+			info.state = RequestInfo.State.CALLBACK;
+		else if (timings.headersReceived != 0 && timings.sent != 0)
+			info.state = RequestInfo.State.RECEIVING;
+		else if (timings.connected != 0)
+			info.state = RequestInfo.State.WAITING;
+		else if (timings.sent != 0)
+			info.state = RequestInfo.State.CONNECTING;
+		else if (timings.started != 0)
+			info.state = RequestInfo.State.PREPARING;
+		else
+			info.state = RequestInfo.State.QUEUED;
+		return info;
+	}
+	
+	/**
+	 * Marks the start of a group of requests, such as an {@link AjaxBatch}, that should be treated as
+	 * a single global Ajax operation. {@link $#ajaxStart()} is invoked if no other global Ajax tasks
+	 * are running, and {@link $#ajaxStop()} will not be invoked until {@link #exitGlobal()} is called.
+	 */
+	static void enterGlobal()
+	{
+		if (globalActivity.getAndIncrement() == 0)
+			$.ajaxStart();
+	}
+	
+	/**
+	 * Marks the end of a group of requests started with {@link #enterGlobal()}
+	 */
+	static void exitGlobal()
+	{
+		if (globalActivity.decrementAndGet() == 0)
+			$.ajaxStop();
+	}
+	
+	/**
+	 * Stops this task. If the request has been sent, the connection is aborted. No callbacks are
+	 * invoked for a stopped task.
+	 */
+	public void abort()
+	{
+		AjaxTask l = leader;
+		if (l != null)
+		{
+			//this task has no request of its own
+			if (l.unfollow(this))
+				onCancelled();
+			return;
 		}
-		
-		if (options.global())
+		//cancel first, so that the failure caused by aborting the connection is not reported
+		cancel(true);
+		HttpUriRequest r = request;
+		if (r != null)
+			r.abort();
+	}
+	
+	/**
+	 * Called when the {@link AjaxOptions#deadline() deadline} passes. The task is stopped, whether it is
+	 * waiting to run or running, and the connection is aborted. The failure is reported as a timeout. 
+	 * Runs on the {@link AjaxScheduler} timer thread.
+	 */
+	private void expire()
+	{
+		expired = true;
+		AjaxTask l = leader;
+		if (l != null)
 		{
-			synchronized(globalTasks)
+			//this task has no request of its own, so it stops waiting for the leader's response
+			if (l.unfollow(this))
+				reportTimeout();
+			return;
+		}
+		//onCancelled reports the timeout
+		cancel(true);
+		HttpUriRequest r = request;
+		if (r != null)
+			r.abort();
+	}
+	
+	/**
+	 * Invokes the callbacks with the timeout error. The callbacks are not run on the timer thread, which must not block.
+	 */
+	private void reportTimeout()
+	{
+		report(timedOut());
+	}
+	
+	/**
+	 * Invokes the callbacks with an error, on another thread
+	 * @param error the error
+	 */
+	private void report(final Error error)
+	{
+		ForkJoinPool.commonPool().execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				onPostExecute(error);
+			}
+		});
+	}
+	
+	/**
+	 * Creates the error reported when the deadline passes
+	 * @return the error
+	 */
+	private Error timedOut()
+	{
+		return failure("timeout");
+	}
+	
+	/**
+	 * Creates an error with status 0, for a request that did not get a response
+	 * @param reason the reason
+	 * @return the error
+	 */
+	private Error failure(String reason)
+	{
+		Error e = new Error();
+		AjaxError error = new AjaxError();
+		error.request = request;
+		error.options = options;
+		error.status = 0;
+		error.reason = reason;
+		e.status = error.status;
+		e.reason = error.reason;
+		e.headers = new Header[0];
+		e.error = error;
+		return e;
+	}
+	
+	/**
+	 * Get the time left until the {@link AjaxOptions#deadline() deadline}
+	 * @return the time left, in milliseconds, or {@link Long#MAX_VALUE} if there is no deadline
+	 */
+	private long remaining()
+	{
+		if (deadline == 0)
+			return Long.MAX_VALUE;
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+	}
+	
+	/**
+	 * Get a future that is completed with the response of this task. Must be called before the task is started.
+	 * @return the future
+	 */
+	CompletableFuture<AjaxResponse> future()
+	{
+		if (future == null)
+			future = new AjaxFuture(this);
+		return future;
+	}
+	
+	/**
+	 * Executes this task. If the {@link AjaxOptions#coalesce() coalesce} option is set and an identical 
+	 * {@code GET} or {@code HEAD} request is already in progress, no new request is sent. Instead, this 
+	 * task's callbacks will be invoked with the response of the request that is in progress.
+	 */
+	public void start()
+	{
+		//requests with credentials are not coalesced, so that no caller gets a response authorized for another
+		if (request != null || !options.coalesce() || options.effectiveQueue() != null || options.hasCredentials() || !isIdempotent())
+		{
+			execute();
+			return;
+		}
+		String key = coalesceKey(options);
+		onPreExecute();
+		while (true)
+		{
+			AjaxTask leader = inFlight.get(key);
+			if (leader == null)
 			{
-				if (globalTasks.isEmpty())
+				followers = new ArrayList<AjaxTask>();
+				coalesceKey = key;
+				if (inFlight.putIfAbsent(key, this) == null)
 				{
-					$.ajaxStart();
+					execute();
+					return;
 				}
-				globalTasks.add(this);
+				followers = null;
+				coalesceKey = null;
+			}
+			else if (leader.follow(this))
+			{
+				return;
+			}
+			else
+			{
+				//the leader has already dispatched its response
+				inFlight.remove(key, leader);
 			}
 		}
-		else
+	}
+	
+	/**
+	 * Adds a task that will receive the response of this task.
+	 * @param follower the task
+	 * @return {@code true} if the task was added, or {@code false} if this task has already dispatched its response.
+	 */
+	private synchronized boolean follow(AjaxTask follower)
+	{
+		if (followers == null)
+			return false;
+		followers.add(follower);
+		follower.leader = this;
+		return true;
+	}
+	
+	/**
+	 * Removes a task that would have received the response of this task.
+	 * @param follower the task
+	 * @return {@code true} if the task was removed, or {@code false} if the response has already been dispatched.
+	 */
+	private synchronized boolean unfollow(AjaxTask follower)
+	{
+		return followers != null && followers.remove(follower);
+	}
+	
+	/**
+	 * Checks if the request method is {@code GET} or {@code HEAD}, so that identical requests can share a response.
+	 * @return {@code true} if the request can be coalesced. Otherwise {@code false}.
+	 */
+	private boolean isIdempotent()
+	{
+		String type = options.type();
+		return type == null || type.equalsIgnoreCase("GET") || type.equalsIgnoreCase("HEAD");
+	}
+	
+	/**
+	 * Get the key used to find identical requests that are in progress.
+	 * @param options the request options
+	 * @return the key
+	 */
+	private static String coalesceKey(AjaxOptions options)
+	{
+		//the cache key includes the size of decoded images
+		StringBuilder builder = new StringBuilder(AjaxCache.key(options));
+		if (options.headers() != null)
+			builder.append(' ').append(new TreeMap<String, String>(options.headers().map()));
+		if (options.cookies() != null)
+			builder.append(' ').append(new TreeMap<String, String>(options.cookies()));
+		if (options.downloadTarget() != null)
+			builder.append(' ').append(options.downloadTarget().getAbsolutePath());
+		if (options.deadline() > 0)
+			builder.append(" deadline=").append(options.deadline());
+		//these change whether the cache is used, and how a 304 response is reported
+		builder.append(" cache=").append(options.cache()).append(" ifModified=").append(options.ifModified());
+		return builder.toString();
+	}
+	
+	/**
+	 * Ajax Tasks are queued by host, so that a slow host cannot delay requests to other hosts. Tasks 
+	 * with a {@link AjaxOptions#queue() queue} first wait for the tasks before them in that queue,
+	 * and then for their {@link AjaxOptions#rateLimit() rate limiters}.
+	 * @see AjaxScheduler
+	 * @see AjaxQueue
+	 * @see RateLimiter
+	 */
+	@Override
+	protected Executor getExecutor()
+	{
+		final AjaxScheduler scheduler = AjaxScheduler.getInstance();
+		Executor executor = scheduler.executor(AjaxScheduler.host(options.url()));
+		if (options.rateLimit() != null)
 		{
-			synchronized(localTasks)
-			{
-				localTasks.add(this);
+			final Executor host = executor;
+			executor = new Executor() {
+				
+				@Override
+				public void execute(final Runnable command) {
+					long delay = reserve();
+					if (delay == 0)
+					{
+						host.execute(command);
+						return;
+					}
+					//wait on the timer, so that no worker thread is held
+					scheduler.scheduleAfter(new Runnable() {
+						
+						@Override
+						public void run() {
+							host.execute(command);
+						}
+					}, delay);
+				}
+			};
+		}
+		String queue = options.effectiveQueue();
+		if (queue != null)
+			executor = AjaxQueue.executor(queue, executor);
+		final Executor chain = executor;
+		return new Executor() {
+			
+			@Override
+			public void execute(final Runnable command) {
+				//fail, rather than wait forever, if the scheduler cannot start the task
+				chain.execute(new AjaxScheduler.Rejectable() {
+					
+					@Override
+					public void run() {
+						command.run();
+					}
+					
+					@Override
+					public void rejected() {
+						AjaxTask.this.rejected = true;
+						cancel(false);
+					}
+				});
 			}
+		};
+	}
+	
+	@Override
+	protected void onPreExecute()
+	{
+		if (preExecuted)
+			return;
+		preExecuted = true;
+		timings.queued = System.nanoTime();
+		if (options.deadline() > 0)
+		{
+			deadline = timings.queued + TimeUnit.MILLISECONDS.toNanos(options.deadline());
+			watchdog = AjaxScheduler.getInstance().scheduleAfter(new Runnable() {
+				
+				@Override
+				public void run() {
+					expire();
+				}
+			}, options.deadline());
 		}
+		if (tasks.add(this) && options.global())
+			enterGlobal();
 		
 		if (options.beforeSend() != null)
 		{
@@ -201,24 +571,65 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 	@Override
 	protected TaskResponse doInBackground(Void... arg0) 
 	{
-		//handle cached responses
-		CachedResponse cachedResponse = URLresponses.get(String.format(Locale.US, "%s_?=%s", options.url(), options.dataType()));
+		timings.started = System.nanoTime();
+		if (expired)
+			return timedOut();
+		try
+		{
+			TaskResponse response = performRequest();
+			//the failure may have been caused by the deadline, through an aborted connection or a shortened timeout
+			if ((expired || (deadline != 0 && remaining() == 0)) && !(response instanceof Success))
+				return timedOut();
+			return response;
+		}
+		catch (RuntimeException e)
+		{
+			//report the failure, so that callbacks (including those of coalesced tasks) are still invoked
+			if (options.debug())
+				e.printStackTrace();
+			return expired ? timedOut() : null;
+		}
+	}
+	
+	/**
+	 * Sends the request and parses the response
+	 * @return the response
+	 */
+	private TaskResponse performRequest()
+	{
 		//handle ajax caching option
-		if (cachedResponse != null)
+		AjaxCache cache = AjaxCache.getInstance();
+		String cacheKey = AjaxCache.key(options);
+		AjaxCache.Entry cachedResponse = null;
+		if (options.cache())
+			cachedResponse = cache.get(cacheKey);
+		else if (options.ifModified())
+			cachedResponse = cache.peek(cacheKey);
+		if (cachedResponse == null && (options.cache() || options.ifModified()) && !revalidation)
+		{
+			//after a restart, responses may still be available from disk
+			AjaxPersistentStore store = cache.getPersistentStore();
+			if (store != null && isPersistable())
+				cachedResponse = restore(cache, store, cacheKey);
+		}
+		if (cachedResponse != null && options.cache() && !revalidation)
 		{
-			if (options.cache())
+			boolean usable = !cachedResponse.isExpired();
+			if (!usable && cachedResponse.isStaleWhileRevalidate())
 			{
-				if (new Date().getTime() - cachedResponse.timestamp.getTime() < options.cacheTimeout())
-				{
-					//return cached response
-					Success s = new Success();
-					s.obj = cachedResponse.response;
-					s.reason = "cached response";
-					s.headers = null;
-					return s;
-				}
+				revalidateInBackground(cachedResponse);
+				usable = true;
+			}
+			if (usable)
+			{
+				//return cached response
+				Success s = new Success();
+				s.obj = cachedResponse.response();
+				s.status = HttpStatus.SC_OK;
+				s.reason = "cached response";
+				s.headers = null;
+				return s;
 			}
-			
 		}
 		
 		if (request == null)
@@ -303,57 +714,87 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 			}
 		}
 		
+		//send the validators of an expired response, so that the server can reply with 304 Not Modified
+		//instead of sending the full response again.
+		if (cachedResponse != null)
+		{
+			if (cachedResponse.etag() != null && !request.containsHeader("If-None-Match"))
+				request.addHeader("If-None-Match", cachedResponse.etag());
+			if (cachedResponse.lastModified() != null && !request.containsHeader("If-Modified-Since"))
+				request.addHeader("If-Modified-Since", DateUtils.formatDate(cachedResponse.lastModified()));
+		}
+		
+		if (isDownload())
+			FileResponseHandler.prepareRequest(request, options);
+		
 		if (options.data() != null)
 		{
-			try
+			if (request instanceof HttpEntityEnclosingRequest)
 			{
-				Method setEntity = request.getClass().getMethod("setEntity", new Class<?>[]{HttpEntity.class});
-				if (options.processData() == null)
+				try
 				{
-					setEntity.invoke(request, new StringEntity(options.data().toString()));
+					HttpEntity entity = buildEntity(options.data());
+					if (options.data() instanceof FormData)
+					{
+						//the entity's content type contains the part boundary
+						request.removeHeaders("Content-Type");
+					}
+					if (options.compressData())
+					{
+						entity = new GzipCompressingEntity(entity);
+					}
+					((HttpEntityEnclosingRequest) request).setEntity(entity);
 				}
-				else
+				catch (Throwable t)
 				{
-					Class<?> dataProcessor = Class.forName(options.processData());
-					Constructor<?> constructor = dataProcessor.getConstructor(new Class<?>[]{Object.class});
-					setEntity.invoke(request, constructor.newInstance(options.data()));
+					Log.w("Ajax", "Could not post data");
 				}
 			}
-			catch (Throwable t)
+			else
 			{
 				Log.w("Ajax", "Could not post data");
 			}
 		}
 		
-		HttpParams params = new BasicHttpParams();
-		
-		if (options.timeout() != 0)
-		{
-			HttpConnectionParams.setConnectionTimeout(params, options.timeout());
-			HttpConnectionParams.setSoTimeout(params, options.timeout());
-		}
-		
-		HttpClient client = new DefaultHttpClient(params);
-		
 		HttpResponse response = null;
 		try {
 			
-			
-			
+			//the cookies option is sent to the request host only, and is never kept in a session's jar
+			List<Cookie> extra = new ArrayList<Cookie>();
 			if (options.cookies() != null)
 			{
-				CookieStore cookies = new BasicCookieStore();
 				for (Entry<String, String> entry : options.cookies().entrySet())
 				{
-					cookies.addCookie(new BasicClientCookie(entry.getKey(), entry.getValue()));
+					BasicClientCookie cookie = new BasicClientCookie(entry.getKey(), entry.getValue());
+					cookie.setDomain(request.getURI().getHost());
+					cookie.setPath("/");
+					extra.add(cookie);
 				}
-				HttpContext httpContext = new BasicHttpContext();
-				httpContext.setAttribute(ClientContext.COOKIE_STORE, cookies);
-				response = client.execute(request, httpContext);
+			}
+			CookieStore cookies;
+			if (options.session() != null)
+			{
+				cookies = AjaxCookieJar.forSession(options.session()).with(extra);
 			}
 			else
 			{
-				response = client.execute(request);
+				//without a session, use a new cookie store, so that cookies are not shared by requests through the shared client
+				cookies = new BasicCookieStore();
+				for (Cookie cookie : extra)
+					cookies.addCookie(cookie);
+			}
+			HttpContext httpContext = new BasicHttpContext();
+			httpContext.setAttribute(ClientContext.COOKIE_STORE, cookies);
+			httpContext.setAttribute(AjaxTimings.CONTEXT_ATTRIBUTE, timings);
+			response = send(httpContext);
+			if (timings.headersReceived == 0)
+			{
+				//the transport did not record when the headers arrived
+				timings.headersReceived = System.nanoTime();
+			}
+			if (response.getEntity() != null)
+			{
+				response.setEntity(new AjaxTimings.TimedEntity(response.getEntity(), timings));
 			}
 			
 			
@@ -367,7 +808,7 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 			
 			StatusLine statusLine = response.getStatusLine();
 			
-			Function function = options.statusCode().get(statusLine);
+			Function function = options.statusCode().get(statusLine.getStatusCode());
 			if (function != null)
 			{
 				if (options.context() != null)
@@ -376,9 +817,30 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 					function.invoke(null);
 			}
 			
+			if (statusLine.getStatusCode() == HttpStatus.SC_NOT_MODIFIED && cachedResponse != null)
+			{
+				//the cached response is still valid
+				cachedResponse = cache.revalidated(cachedResponse, options.cacheTimeout(), response.getAllHeaders());
+				if (!options.ifModified())
+				{
+					Success s = new Success();
+					s.obj = cachedResponse.response();
+					s.status = statusLine.getStatusCode();
+					s.reason = statusLine.getReasonPhrase();
+					s.headers = response.getAllHeaders();
+					return s;
+				}
+				//if ifModified is set, the unmodified response is reported as an error
+			}
+			
 			if (statusLine.getStatusCode() >= 300)
 	        {
 				//an error occurred
+				if (statusLine.getStatusCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && isDownload() && options.downloadTarget() != null)
+				{
+					//the partial download cannot be resumed. Start over next time.
+					FileResponseHandler.discard(options.downloadTarget());
+				}
 				Error e = new Error();
 				AjaxError error = new AjaxError();
 				error.request = request;
@@ -394,61 +856,20 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 			else
 			{
 				//handle dataType
-				String dataType = options.dataType();
-				if (dataType == null)
-					dataType = "text";
+				AjaxPersistentStore persistent = cache.getPersistentStore();
+				byte[] body = null;
 				Object parsedResponse = null;
 				boolean success = true;
+				timings.parseStarted = System.nanoTime();
 				try
 				{
-					if (dataType.equalsIgnoreCase("text") || dataType.equalsIgnoreCase("html"))
-					{
-						parsedResponse = parseText(response);
-					}
-					else if (dataType.equalsIgnoreCase("xml"))
-					{
-						if (options.customXMLParser() != null)
-						{
-							InputStream is = response.getEntity().getContent();
-							if (options.SAXContentHandler() != null)
-								options.customXMLParser().parse(is, options.SAXContentHandler());
-							else
-								options.customXMLParser().parse(is, new DefaultHandler());
-							parsedResponse = "Response handled by custom SAX parser";
-						}
-						else if (options.SAXContentHandler() != null)
-						{
-							InputStream is = response.getEntity().getContent();
-							
-							SAXParserFactory factory = SAXParserFactory.newInstance();
-							
-							factory.setFeature("http://xml.org/sax/features/namespaces", false);
-							factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-							
-							SAXParser parser = factory.newSAXParser();
-							
-							XMLReader reader = parser.getXMLReader();
-							reader.setContentHandler(options.SAXContentHandler());
-							reader.parse(new InputSource(is));
-							parsedResponse = "Response handled by custom SAX content handler";
-						}
-						else
-						{
-							parsedResponse = parseXML(response);
-						}
-					}
-					else if (dataType.equalsIgnoreCase("json"))
-					{
-						parsedResponse = parseJSON(response);
-					}
-					else if (dataType.equalsIgnoreCase("script"))
-					{
-						parsedResponse = parseScript(response);
-					}
-					else if (dataType.equalsIgnoreCase("image"))
+					if (persistent != null && isPersistable())
 					{
-						parsedResponse = parseImage(response);
+						//keep the raw body, so that it can be written to the persistent store
+						body = bufferEntity(response);
 					}
+					parsedResponse = parse(response);
+					timings.parsed = System.nanoTime();
 				}
 				catch (ClientProtocolException cpe)
 				{
@@ -488,83 +909,61 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 				{
 					//Handle cases where successful requests still return errors (these include
 					//configurations in AjaxOptions and HTTP Headers
-					String key = String.format(Locale.US, "%s_?=%s", options.url(), options.dataType());
-					CachedResponse cache = URLresponses.get(key);
-					Date now = new Date();
-					//handle ajax caching option
-					if (cache != null)
+					Date lastModified = null;
+					Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+					if (lastModifiedHeader != null)
 					{
-						if (options.cache())
+						try
 						{
-							if (now.getTime() - cache.timestamp.getTime() < options.cacheTimeout())
-							{
-								parsedResponse = cache;
-							}
-							else
-							{
-								cache.response = parsedResponse;
-								cache.timestamp = now;
-								synchronized(URLresponses) {
-									URLresponses.put(key, cache);
-								}
-							}
+							lastModified = DateUtils.parseDate(lastModifiedHeader.getValue());
+						}
+						catch (Throwable t)
+						{
+							Log.e("Ajax", "Could not parse Last-Modified Header");
 						}
-						
 					}
 					//handle ajax ifModified option
-					Header[] lastModifiedHeaders = response.getHeaders("last-modified");
-					if (lastModifiedHeaders.length >= 1) {
-						try
+					if (options.ifModified() && lastModified != null)
+					{
+						AjaxCache.Entry previous = cache.peek(cacheKey);
+						if (previous != null && previous.lastModified() != null && previous.lastModified().equals(lastModified))
 						{
-							Header h = lastModifiedHeaders[0];
-							SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
-							Date lastModified = format.parse(h.getValue());
-							if (options.ifModified() && lastModified != null)
+							//request response has not been modified. 
+							//Causes an error instead of a success.
+							Error e = new Error();
+							AjaxError error = new AjaxError();
+							error.request = request;
+							error.options = options;
+							e.status = statusLine.getStatusCode();
+							e.reason = statusLine.getReasonPhrase();
+							error.status = e.status;
+							error.reason = e.reason;
+							e.headers = response.getAllHeaders();
+							e.error = error;
+							Function func = options.statusCode().get(304);
+							if (func != null)
 							{
-								if (cache.lastModified != null && cache.lastModified.compareTo(lastModified) == 0)
-								{
-									//request response has not been modified. 
-									//Causes an error instead of a success.
-									Error e = new Error();
-									AjaxError error = new AjaxError();
-									error.request = request;
-									error.options = options;
-									e.status = statusLine.getStatusCode();
-									e.reason = statusLine.getReasonPhrase();
-									error.status = e.status;
-									error.reason = e.reason;
-									e.headers = response.getAllHeaders();
-									e.error = error;
-									Function func = options.statusCode().get(304);
-									if (func != null)
-									{
-										if (options.context() != null)
-											func.invoke(new $(options.context()));
-										else
-											func.invoke(null);
-									}
-									return e;
-								}
+								if (options.context() != null)
+									func.invoke(new $(options.context()));
 								else
-								{
-									cache.lastModified = lastModified;
-									synchronized(URLresponses) {
-										URLresponses.put(key, cache);
-									}
-								}
+									func.invoke(null);
 							}
+							return e;
 						}
-						catch (Throwable t)
-						{
-							Log.e("Ajax", "Could not parse Last-Modified Header");
-						}
-						
+					}
+					//handle ajax caching option. The validators are also kept for ifModified.
+					if (options.cache() || (options.ifModified() && (lastModified != null || response.containsHeader("ETag"))))
+					{
+						long contentLength = response.getEntity() == null ? -1 : response.getEntity().getContentLength();
+						cache.put(cacheKey, options.url(), parsedResponse, AjaxCache.estimateSize(parsedResponse, contentLength), 
+								  options.cacheTimeout(), response.getAllHeaders(), body);
 					}
 					
 					//Now handle a successful request
 					
 					Success s = new Success();
 					s.obj = parsedResponse;
+					s.status = statusLine.getStatusCode();
 					s.reason = statusLine.getReasonPhrase();
 					s.headers = response.getAllHeaders();
 					return s;
@@ -580,7 +979,7 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 		} catch (Throwable t) {
 			if (options.debug())
 				t.printStackTrace();
-			if (t instanceof java.net.SocketTimeoutException)
+			if (t instanceof java.net.SocketTimeoutException || t instanceof CircuitBreaker.OpenException)
 			{
 				Error e = new Error();
 				AjaxError error = new AjaxError();
@@ -602,14 +1001,361 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 			}
 			return null;
 		}
+		finally
+		{
+			//release the connection back to the pool
+			if (response != null)
+			{
+				EntityUtils.consumeQuietly(response.getEntity());
+			}
+		}
+	}
+	
+	/**
+	 * Creates the request body. Files, streams, {@link FormData} and entities are sent as they are read,
+	 * without being copied into memory. Other data is converted to a String, unless
+	 * {@link AjaxOptions#processData() processData} is set.
+	 * @param data the data to send
+	 * @return the request entity
+	 * @throws Exception if the entity cannot be created
+	 */
+	private HttpEntity buildEntity(Object data) throws Exception
+	{
+		if (options.processData() != null)
+		{
+			Class<?> dataProcessor = Class.forName(options.processData());
+			Constructor<?> constructor = dataProcessor.getConstructor(new Class<?>[]{Object.class});
+			return (HttpEntity) constructor.newInstance(data);
+		}
+		if (data instanceof HttpEntity)
+		{
+			return (HttpEntity) data;
+		}
+		if (data instanceof FormData)
+		{
+			return ((FormData) data).toEntity();
+		}
+		if (data instanceof File)
+		{
+			return new FileEntity((File) data, ContentType.parse(options.contentType()));
+		}
+		if (data instanceof InputStream)
+		{
+			//unknown length, so the body is sent chunked
+			InputStreamEntity entity = new InputStreamEntity((InputStream) data, -1);
+			entity.setContentType(options.contentType());
+			return entity;
+		}
+		if (data instanceof byte[])
+		{
+			return new ByteArrayEntity((byte[]) data, ContentType.parse(options.contentType()));
+		}
+		return new StringEntity(data.toString());
+	}
+	
+	/**
+	 * Sends the request, retrying it according to the {@link AjaxOptions#retry() retry policy}, and
+	 * reporting the result to the host's {@link CircuitBreaker} if {@link AjaxOptions#circuitBreaker()}
+	 * is set.
+	 * @param httpContext the context
+	 * @return the response
+	 * @throws IOException if the request fails, or {@link CircuitBreaker.OpenException} if the host's circuit is open
+	 */
+	private HttpResponse send(HttpContext httpContext) throws IOException
+	{
+		AjaxTransport transport = options.transport() != null ? options.transport() : ApacheTransport.getInstance();
+		RetryPolicy retry = options.retry();
+		if (request instanceof HttpEntityEnclosingRequest)
+		{
+			//a streamed body can only be sent once
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			if (entity != null && !entity.isRepeatable())
+				retry = null;
+		}
+		CircuitBreaker breaker = null;
+		if (options.circuitBreaker())
+			breaker = CircuitBreaker.forHost(AjaxScheduler.host(options.url()));
+		int attempt = 1;
+		while (true)
+		{
+			if (breaker != null && !breaker.allowRequest())
+				throw new CircuitBreaker.OpenException(breaker.getHost());
+			
+			HttpResponse response;
+			long delay = 0;
+			try
+			{
+				if (expired)
+					throw new InterruptedIOException("Deadline exceeded");
+				applyTimeouts();
+				timings.sent = System.nanoTime();
+				timings.connected = 0;
+				timings.headersReceived = 0;
+				timings.attempts = attempt;
+				response = transport.execute(request, options, httpContext);
+			}
+			catch (IOException e)
+			{
+				//a request that was cancelled, aborted or ran out of time says nothing about the health of the host
+				boolean aborted = isCancelled() || expired || request.isAborted();
+				if (breaker != null && !aborted)
+					breaker.onFailure();
+				if (retry == null || aborted || !retry.shouldRetry(request, attempt, e))
+					throw e;
+				//do not retry if the next attempt cannot start before the deadline
+				delay = retryDelay(retry.delay(attempt, null));
+				if (delay < 0)
+					throw e;
+				response = null;
+			}
+			
+			if (response != null)
+			{
+				int status = response.getStatusLine().getStatusCode();
+				if (breaker != null)
+				{
+					if (status >= 500)
+						breaker.onFailure();
+					else
+						breaker.onSuccess();
+				}
+				if (retry == null || isCancelled() || expired || !retry.shouldRetry(request, attempt, status))
+					return response;
+				delay = retryDelay(retry.delay(attempt, response.getFirstHeader("Retry-After")));
+				if (delay < 0)
+					return response;
+				//release the connection before waiting
+				EntityUtils.consumeQuietly(response.getEntity());
+			}
+			
+			if (options.debug())
+				Log.i("Ajax", String.format(Locale.US, "Retrying %s in %d ms (attempt %d)", options.url(), delay, attempt + 1));
+			try
+			{
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Retry interrupted");
+			}
+			attempt++;
+		}
+	}
+	
+	/**
+	 * Get the time to wait before a retry. The worker thread only waits for the retry policy's delay,
+	 * never for tokens of the {@link AjaxOptions#rateLimit() rate limiters}, so the retry takes a token
+	 * from each limiter only if all of them have one by the end of the delay. Otherwise, it is not retried.
+	 * @param delay the delay of the retry policy, in milliseconds
+	 * @return the time to wait, in milliseconds, or -1 if the retry cannot start before the deadline,
+	 * or its tokens are not available in time
+	 */
+	private long retryDelay(long delay)
+	{
+		if (delay >= remaining())
+			return -1;
+		RateLimiter[] limiters = options.rateLimit();
+		if (limiters == null)
+			return delay;
+		long maxWait = TimeUnit.MILLISECONDS.toNanos(delay);
+		long[] waits = new long[limiters.length];
+		for (int i = 0; i < limiters.length; i++)
+		{
+			waits[i] = limiters[i].reserve(options.url(), maxWait);
+			if (waits[i] < 0)
+			{
+				//give back the tokens already taken
+				for (int j = 0; j < i; j++)
+					limiters[j].release(options.url(), waits[j]);
+				if (options.debug())
+					Log.i("Ajax", "Not retrying " + options.url() + ": rate limited");
+				return -1;
+			}
+		}
+		return delay;
+	}
+	
+	/**
+	 * Takes a token from each {@link AjaxOptions#rateLimit() rate limiter} that applies to the request
+	 * @return the time (in milliseconds) to wait for the last token, or 0 to send the request now
+	 */
+	private long reserve()
+	{
+		RateLimiter[] limiters = options.rateLimit();
+		if (limiters == null)
+			return 0;
+		long wait = 0;
+		for (RateLimiter limiter : limiters)
+			wait = Math.max(wait, limiter.reserve(options.url()));
+		return TimeUnit.NANOSECONDS.toMillis(wait + 999999);
+	}
+	
+	/**
+	 * Sets the connect and socket timeouts of the next attempt. These are the {@link AjaxOptions#timeout() timeout},
+	 * shortened to the time left until the {@link AjaxOptions#deadline() deadline}.
+	 */
+	private void applyTimeouts()
+	{
+		long timeout = options.timeout() > 0 ? options.timeout() : Long.MAX_VALUE;
+		timeout = Math.min(timeout, remaining());
+		if (timeout == Long.MAX_VALUE)
+			return;
+		//0 means no timeout, so at least 1 ms is used
+		int millis = (int) Math.max(1, Math.min(timeout, Integer.MAX_VALUE));
+		//the client is shared, so the timeouts are set on the request, which overrides the client defaults
+		HttpConnectionParams.setConnectionTimeout(request.getParams(), millis);
+		HttpConnectionParams.setSoTimeout(request.getParams(), millis);
 	}
 	
 	@Override
 	public void onPostExecute(TaskResponse response)
 	{
-		if (!options.async())
+		try
+		{
+			dispatch(response);
+		}
+		finally
+		{
+			releaseFollowers(response);
+		}
+	}
+	
+	@Override
+	protected void onCancelled()
+	{
+		if (expired)
+		{
+			//stopped because the deadline passed, which is reported like any other failure
+			reportTimeout();
+			return;
+		}
+		if (rejected)
+		{
+			//the scheduler could not start the task
+			report(failure("rejected"));
+			return;
+		}
+		if (revalidatedEntry != null)
+			revalidatedEntry.revalidating.set(false);
+		unregister();
+		AjaxFuture f = future;
+		if (f != null)
+			f.cancelled();
+		
+		//coalesced tasks did not ask for this task to be stopped, so they receive an error instead
+		Error e = new Error();
+		AjaxError error = new AjaxError();
+		error.request = request;
+		error.options = options;
+		error.status = 0;
+		error.reason = "abort";
+		e.status = error.status;
+		e.reason = error.reason;
+		e.headers = new Header[0];
+		e.error = error;
+		releaseFollowers(e);
+	}
+	
+	/**
+	 * Passes the response of this task to the tasks that were coalesced with it.
+	 * @param response the response
+	 */
+	private void releaseFollowers(TaskResponse response)
+	{
+		if (coalesceKey == null)
+			return;
+		inFlight.remove(coalesceKey, this);
+		List<AjaxTask> waiting;
+		synchronized (this)
+		{
+			waiting = followers;
+			followers = null;
+		}
+		if (waiting == null)
+			return;
+		for (AjaxTask follower : waiting)
+		{
+			follower.dispatchCoalesced(response);
+		}
+	}
+	
+	/**
+	 * Invokes the callbacks of a task that was coalesced with this task
+	 * @param response the response of this task
+	 */
+	private void dispatchCoalesced(TaskResponse response)
+	{
+		try
+		{
+			TaskResponse copy = response;
+			if (response instanceof Error)
+			{
+				//the error refers to the follower's own options
+				Error e = new Error();
+				AjaxError error = new AjaxError();
+				error.request = ((Error) response).error.request;
+				error.options = options;
+				error.status = response.status;
+				error.reason = response.reason;
+				e.status = response.status;
+				e.reason = response.reason;
+				e.headers = response.headers;
+				e.error = error;
+				copy = e;
+			}
+			if (response != null && response.status != 0)
+			{
+				Function function = options.statusCode().get(response.status);
+				if (function != null)
+				{
+					if (options.context() != null)
+						function.invoke(new $(options.context()));
+					else
+						function.invoke(null);
+				}
+			}
+			dispatch(copy);
+		}
+		catch (Throwable t)
 		{
-			mutex.release();
+			Log.e("Ajax", "Could not deliver coalesced response");
+		}
+	}
+	
+	/**
+	 * Invokes the callbacks for the given response, unregisters this task and completes its {@link #future() future}.
+	 * @param response the response
+	 */
+	private void dispatch(TaskResponse response)
+	{
+		timings.callbackStarted = System.nanoTime();
+		try
+		{
+			invokeCallbacks(response);
+		}
+		finally
+		{
+			timings.finished = System.nanoTime();
+			if (timings.sent != 0)
+				AjaxMetrics.getInstance().record(options.url(), timings);
+			unregister();
+			AjaxFuture f = future;
+			if (f != null)
+				f.deliver(response);
+		}
+	}
+	
+	/**
+	 * Invokes the callbacks for the given response
+	 * @param response the response
+	 */
+	private void invokeCallbacks(TaskResponse response)
+	{
+		if (revalidatedEntry != null)
+		{
+			//allows another attempt if this one failed
+			revalidatedEntry.revalidating.set(false);
 		}
 		if (response == null)
 		{
@@ -620,6 +1366,7 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 				error.status = 0;
 				error.options = options;
 				error.reason = "null response";
+				error.timings = timings;
 				//invoke error with Request, Status, and Error
 				if (options.context() != null)
 					options.error().invoke(new $(options.context()), error, 0, "null response");
@@ -632,6 +1379,7 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 		}
 		else if (response instanceof Error)
 		{
+			((Error) response).error.timings = timings;
 			if (options.error() != null)
 			{
 				//invoke error with Request, Status, and Error
@@ -652,9 +1400,9 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 			{
 				//invoke success with parsed response and the status string
 				if (options.context() != null)
-					options.success().invoke(new $(options.context()), s.obj, s.reason, s.headers);
+					options.success().invoke(new $(options.context()), s.obj, s.reason, s.headers, timings);
 				else
-					options.success().invoke(null, s.obj, s.reason, s.headers);
+					options.success().invoke(null, s.obj, s.reason, s.headers, timings);
 			}
 			
 			if (options.global())
@@ -681,25 +1429,191 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 		}
 		if (options.global())
 			$.ajaxComplete();
-		
-		if (options.global())
+	}
+	
+	/**
+	 * Removes this task from the list of current tasks, and stops its deadline
+	 */
+	private void unregister()
+	{
+		ScheduledFuture<?> w = watchdog;
+		if (w != null)
+			w.cancel(false);
+		//only the call that removes the task ends its global activity
+		if (tasks.remove(this) && options.global())
+			exitGlobal();
+	}
+	
+	/**
+	 * Parses the response entity according to the {@link AjaxOptions#dataType() dataType}
+	 * @param response the response to parse
+	 * @return the parsed response
+	 * @throws Exception if the response cannot be parsed
+	 */
+	private Object parse(HttpResponse response) throws Exception
+	{
+		String dataType = options.dataType();
+		if (dataType == null)
+			dataType = "text";
+		Object parsedResponse = null;
+		if (dataType.equalsIgnoreCase("text") || dataType.equalsIgnoreCase("html"))
 		{
-			synchronized(globalTasks)
-			{
-				globalTasks.remove(this);
-				if (globalTasks.isEmpty())
-				{
-					$.ajaxStop();
-				}
-			}
+			parsedResponse = parseText(response);
 		}
-		else
+		else if (dataType.equalsIgnoreCase("xml"))
 		{
-			synchronized(localTasks)
+			if (options.customXMLParser() != null)
+			{
+				InputStream is = response.getEntity().getContent();
+				if (options.SAXContentHandler() != null)
+					options.customXMLParser().parse(is, options.SAXContentHandler());
+				else
+					options.customXMLParser().parse(is, new DefaultHandler());
+				parsedResponse = "Response handled by custom SAX parser";
+			}
+			else if (options.SAXContentHandler() != null)
+			{
+				InputStream is = response.getEntity().getContent();
+				
+				SAXParserFactory factory = SAXParserFactory.newInstance();
+				
+				factory.setFeature("http://xml.org/sax/features/namespaces", false);
+				factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+				
+				SAXParser parser = factory.newSAXParser();
+				
+				XMLReader reader = parser.getXMLReader();
+				reader.setContentHandler(options.SAXContentHandler());
+				reader.parse(new InputSource(is));
+				parsedResponse = "Response handled by custom SAX content handler";
+			}
+			else
 			{
-				localTasks.remove(this);
+				parsedResponse = parseXML(response);
 			}
 		}
+		else if (dataType.equalsIgnoreCase("json"))
+		{
+			parsedResponse = parseJSON(response);
+		}
+		else if (dataType.equalsIgnoreCase("script"))
+		{
+			parsedResponse = parseScript(response);
+		}
+		else if (dataType.equalsIgnoreCase("image"))
+		{
+			parsedResponse = parseImage(response);
+		}
+		else if (dataType.equalsIgnoreCase("file"))
+		{
+			parsedResponse = parseFile(response);
+		}
+		return parsedResponse;
+	}
+	
+	/**
+	 * Checks whether the response for this task can be written to the {@link AjaxPersistentStore}.
+	 * Responses that are handled by a custom SAX parser or content handler are never stored, and
+	 * neither are scripts, which are executed when they are parsed. Responses to requests that send
+	 * credentials, cookies or a session are never stored either, since the stored responses are shared
+	 * by every request for the same URL.
+	 * @return {@code true} if the response can be stored. Otherwise {@code false}.
+	 */
+	private boolean isPersistable()
+	{
+		if (options.hasCredentials() || options.session() != null || (options.cookies() != null && !options.cookies().isEmpty()))
+			return false;
+		String dataType = options.dataType();
+		if (dataType == null || dataType.equalsIgnoreCase("text") || dataType.equalsIgnoreCase("html") 
+				|| dataType.equalsIgnoreCase("json") || dataType.equalsIgnoreCase("image"))
+			return true;
+		if (dataType.equalsIgnoreCase("xml"))
+			return options.customXMLParser() == null && options.SAXContentHandler() == null;
+		return false;
+	}
+	
+	/**
+	 * Checks whether this task saves its response to a file
+	 * @return {@code true} if the dataType is "file". Otherwise {@code false}.
+	 */
+	private boolean isDownload()
+	{
+		return options.dataType() != null && options.dataType().equalsIgnoreCase("file");
+	}
+	
+	/**
+	 * Reads the response entity into memory, and replaces it with a repeatable copy
+	 * @param response the response
+	 * @return the raw response body, or {@code null} if the response has no entity
+	 * @throws IOException if the entity cannot be read
+	 */
+	private static byte[] bufferEntity(HttpResponse response) throws IOException
+	{
+		HttpEntity entity = response.getEntity();
+		if (entity == null)
+			return null;
+		byte[] body = EntityUtils.toByteArray(entity);
+		ByteArrayEntity copy = new ByteArrayEntity(body);
+		copy.setContentType(entity.getContentType());
+		copy.setContentEncoding(entity.getContentEncoding());
+		response.setEntity(copy);
+		return body;
+	}
+	
+	/**
+	 * Reads a response from the {@link AjaxPersistentStore} into the memory cache
+	 * @param cache the memory cache
+	 * @param store the persistent store
+	 * @param key the cache key
+	 * @return the restored entry, or {@code null} if the response was not stored or could not be parsed
+	 */
+	private AjaxCache.Entry restore(AjaxCache cache, AjaxPersistentStore store, String key)
+	{
+		AjaxPersistentStore.Record record = store.load(key);
+		if (record == null)
+			return null;
+		try
+		{
+			BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+			if (record.headers != null)
+				response.setHeaders(record.headers);
+			ByteArrayEntity entity = new ByteArrayEntity(record.body == null ? new byte[0] : record.body);
+			entity.setContentType(response.getFirstHeader("Content-Type"));
+			response.setEntity(entity);
+			Object parsed = parse(response);
+			return cache.restore(record, parsed, AjaxCache.estimateSize(parsed, entity.getContentLength()));
+		}
+		catch (Exception e)
+		{
+			if (options.debug())
+				e.printStackTrace();
+			store.remove(key);
+			return null;
+		}
+	}
+	
+	/**
+	 * Refreshes a stale cached response, which is still being used, without blocking this task.
+	 * Only one background revalidation is run at a time for each cached response.
+	 * @param entry the stale response
+	 */
+	private void revalidateInBackground(AjaxCache.Entry entry)
+	{
+		if (!entry.revalidating.compareAndSet(false, true))
+			return;
+		AjaxOptions revalidationOptions = new AjaxOptions(options).async(true)
+				                                                  .global(false)
+				                                                  .context(null)
+				                                                  .beforeSend(null)
+				                                                  .dataFilter(null)
+				                                                  .success(null)
+				                                                  .error(null)
+				                                                  .complete(null)
+				                                                  .statusCode(new HashMap<Integer, Function>());
+		AjaxTask task = new AjaxTask(revalidationOptions);
+		task.revalidation = true;
+		task.revalidatedEntry = entry;
+		task.execute();
 	}
 	
 	/**
@@ -724,6 +1638,17 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 		return handler.handleResponse(response);
 	}
 	
+	/**
+	 * Saves the HTTP response to the {@link AjaxOptions#downloadTarget() download target}
+	 * @param response the response to save
+	 * @return the saved File
+	 */
+	private File parseFile(HttpResponse response) throws ClientProtocolException, IOException
+	{
+		FileResponseHandler handler = new FileResponseHandler(options);
+		return handler.handleResponse(response);
+	}
+	
 	/**
 	 * Parses the HTTP response as Text
 	 * @param response the response to parse
@@ -748,7 +1673,7 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 	}
 	
 	/**
-	 * Parses the HTTP response as an Image Object
+	 * Parses the HTTP response as an Image Object, decoded at the {@link AjaxOptions#imageWidth() requested size}
 	 * @param response the response to parse
 	 * @return an Image Object containing the retrieved Image
 	 * @throws ClientProtocolException
@@ -756,7 +1681,70 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 	 */
 	private Image parseImage(HttpResponse response) throws ClientProtocolException, IOException
 	{
-		return ImageIO.read(response.getEntity().getContent());
+		return ImageLoader.decode(response.getEntity().getContent(), options.imageWidth(), options.imageHeight());
+	}
+	
+	/**
+	 * Future returned by {@link $#ajaxAsync(AjaxOptions)}. Cancelling the future aborts the request.
+	 */
+	private static class AjaxFuture extends CompletableFuture<AjaxResponse>
+	{
+		/** The task that completes this future */
+		private final AjaxTask task;
+		
+		/**
+		 * Constructor
+		 * @param task the task that completes this future
+		 */
+		AjaxFuture(AjaxTask task)
+		{
+			this.task = task;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled)
+				task.abort();
+			return cancelled;
+		}
+		
+		/**
+		 * Called when the task has been stopped
+		 */
+		void cancelled()
+		{
+			super.cancel(false);
+		}
+		
+		/**
+		 * Completes this future with the response of the task
+		 * @param response the response
+		 */
+		void deliver(TaskResponse response)
+		{
+			if (response instanceof Success)
+			{
+				Success s = (Success) response;
+				complete(new AjaxResponse(s.obj, s.status, s.reason, s.headers, task.options, task.timings));
+			}
+			else if (response instanceof Error)
+			{
+				Error e = (Error) response;
+				completeExceptionally(new AjaxException(e.error, e.status, e.reason, e.headers));
+			}
+			else
+			{
+				AjaxError error = new AjaxError();
+				error.request = task.request;
+				error.options = task.options;
+				error.status = 0;
+				error.reason = "null response";
+				error.timings = task.timings;
+				completeExceptionally(new AjaxException(error, 0, error.reason, null));
+			}
+		}
 	}
 	
 	/**
@@ -805,5 +1793,55 @@ public class AjaxTask extends AsyncTask<Void, Void, TaskResponse>
 		public int status;
 		/** The error string */
 		public String reason;
+		/** The time spent in each phase of the request */
+		public AjaxTimings timings;
+	}
+	
+	/**
+	 * Diagnostic information about a current task
+	 * @see AjaxTask#getActiveRequests()
+	 */
+	public static class RequestInfo
+	{
+		/**
+		 * What a task is doing
+		 */
+		public enum State
+		{
+			/** Waiting for a worker thread */
+			QUEUED,
+			/** Checking the cache and building the request, or waiting to retry */
+			PREPARING,
+			/** Getting a connection. The JDK transport reports this state until the response headers arrive. */
+			CONNECTING,
+			/** Waiting for the response headers */
+			WAITING,
+			/** Reading and parsing the response */
+			RECEIVING,
+			/** Running the callbacks */
+			CALLBACK
+		}
+		
+		/** The request URL */
+		public String url;
+		/** The request method */
+		public String method;
+		/** Time since the task was started, in milliseconds */
+		public long age;
+		/** What the task is doing */
+		public State state;
+		/** Number of times the request has been sent, including retries */
+		public int attempts;
+		/** Whether the task triggers the global Ajax events */
+		public boolean global;
+		/** Whether the task is waiting for the response of an identical request, instead of sending its own */
+		public boolean coalesced;
+		
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.US, "%s %s %s %dms%s", method, url, state, age, 
+					             attempts > 1 ? " (attempt " + attempts + ")" : "");
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The time an Ajax request spent in each phase of its life. The timestamps are {@link System#nanoTime()}
+ * values, and are 0 if the phase was not reached. Use {@link #millis(Phase)} to get the duration of a phase.
+ * The timings are passed to the {@link AjaxOptions#success(Function) success} function, and are available from
+ * {@link AjaxResponse#timings()} and {@link AjaxTask.AjaxError#timings}. They are also recorded in the {@link AjaxMetrics}.
+ * @author Phil Brown
+ */
+public class AjaxTimings
+{
+	/** The {@link HttpContext} attribute that holds the timings of a request */
+	public static final String CONTEXT_ATTRIBUTE = "self.philbrown.javaQuery.timings";
+
+	/**
+	 * The phases of a request
+	 */
+	public enum Phase
+	{
+		/** Waiting to run, after the task was started */
+		QUEUE,
+		/** Getting a connection, including DNS lookup, connecting and the TLS handshake. Only measured by the Apache transport. */
+		CONNECT,
+		/** Waiting for the response headers, after the connection was ready */
+		FIRST_BYTE,
+		/** Reading the response body */
+		DOWNLOAD,
+		/** Parsing the response body, not including the time spent reading it */
+		PARSE,
+		/** Running the callbacks */
+		CALLBACK,
+		/** From the start of the task until its callbacks have finished */
+		TOTAL
+	}
+
+	/** When the task was submitted to its executor */
+	public long queued;
+	/** When the task started running */
+	public long started;
+	/** When the last attempt to send the request started */
+	public long sent;
+	/** When the connection of the last attempt was ready */
+	public long connected;
+	/** When the response headers were received */
+	public long headersReceived;
+	/** When reading and parsing the response started */
+	public long parseStarted;
+	/** When the response was parsed */
+	public long parsed;
+	/** When the callbacks started */
+	public long callbackStarted;
+	/** When the callbacks finished */
+	public long finished;
+	/** Total time spent waiting for the response body, in nanoseconds */
+	public long readTime;
+	/** The number of times the request was sent, including retries */
+	public int attempts;
+
+	/**
+	 * Get the duration of a phase
+	 * @param phase the phase
+	 * @return the duration, in nanoseconds, or 0 if the phase was not measured
+	 */
+	public long nanos(Phase phase)
+	{
+		switch (phase)
+		{
+			case QUEUE:
+				return between(queued, started);
+			case CONNECT:
+				return between(sent, connected);
+			case FIRST_BYTE:
+				return between(connected != 0 ? connected : sent, headersReceived);
+			case DOWNLOAD:
+				return readTime;
+			case PARSE:
+				return Math.max(0, between(parseStarted, parsed) - readTime);
+			case CALLBACK:
+				return between(callbackStarted, finished);
+			case TOTAL:
+				return between(queued != 0 ? queued : started, finished);
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Get the duration of a phase
+	 * @param phase the phase
+	 * @return the duration, in milliseconds, or 0 if the phase was not measured
+	 */
+	public double millis(Phase phase)
+	{
+		return nanos(phase) / 1000000.0;
+	}
+
+	/**
+	 * Get the time between two timestamps
+	 * @param start the first timestamp
+	 * @param end the second timestamp
+	 * @return the time between the timestamps, or 0 if either was not recorded
+	 */
+	private static long between(long start, long end)
+	{
+		if (start == 0 || end == 0)
+			return 0;
+		return Math.max(0, end - start);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder("AjaxTimings[");
+		for (Phase phase : Phase.values())
+		{
+			if (phase.ordinal() > 0)
+				builder.append(", ");
+			builder.append(phase.name().toLowerCase(Locale.US)).append('=')
+			       .append(String.format(Locale.US, "%.2fms", millis(phase)));
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * Get the timings of a request from its context
+	 * @param context the context
+	 * @return the timings, or {@code null} if the request is not timed
+	 */
+	static AjaxTimings from(HttpContext context)
+	{
+		Object timings = context == null ? null : context.getAttribute(CONTEXT_ATTRIBUTE);
+		return timings instanceof AjaxTimings ? (AjaxTimings) timings : null;
+	}
+
+	/**
+	 * Records when the connection is ready. Request interceptors run once the connection has been
+	 * leased from the pool and opened.
+	 */
+	static class ConnectInterceptor implements HttpRequestInterceptor
+	{
+		@Override
+		public void process(HttpRequest request, HttpContext context) throws HttpException, IOException
+		{
+			AjaxTimings timings = from(context);
+			if (timings != null)
+				timings.connected = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Records when the response headers are received
+	 */
+	static class FirstByteInterceptor implements HttpResponseInterceptor
+	{
+		@Override
+		public void process(HttpResponse response, HttpContext context) throws HttpException, IOException
+		{
+			AjaxTimings timings = from(context);
+			if (timings != null)
+				timings.headersReceived = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Wraps a response entity, and adds the time spent reading it to {@link AjaxTimings#readTime}
+	 */
+	static class TimedEntity extends HttpEntityWrapper
+	{
+		/** The timings */
+		private final AjaxTimings timings;
+
+		/**
+		 * Constructor
+		 * @param entity the entity
+		 * @param timings the timings
+		 */
+		TimedEntity(HttpEntity entity, AjaxTimings timings)
+		{
+			super(entity);
+			this.timings = timings;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException
+		{
+			return new FilterInputStream(wrappedEntity.getContent()) {
+
+				@Override
+				public int read() throws IOException
+				{
+					long start = System.nanoTime();
+					try
+					{
+						return super.read();
+					}
+					finally
+					{
+						timings.readTime += System.nanoTime() - start;
+					}
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException
+				{
+					long start = System.nanoTime();
+					try
+					{
+						return super.read(b, off, len);
+					}
+					finally
+					{
+						timings.readTime += System.nanoTime() - start;
+					}
+				}
+			};
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException
+		{
+			long start = System.nanoTime();
+			try
+			{
+				super.writeTo(out);
+			}
+			finally
+			{
+				timings.readTime += System.nanoTime() - start;
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Sends the HTTP requests of {@link AjaxTask Ajax Tasks}. Requests and responses are described
+ * with the Apache HttpCore types, so that the rest of the Ajax pipeline (caching, parsing and
+ * callbacks) is the same for every transport.
+ * @author Phil Brown
+ * @see AjaxOptions#transport(AjaxTransport)
+ * @see ApacheTransport
+ * @see JdkHttpTransport
+ */
+public interface AjaxTransport
+{
+	/**
+	 * Sends a request, and waits for the response headers. The response entity is read by the caller,
+	 * and must be consumed or closed to release the underlying connection. If the calling thread is
+	 * interrupted or the request is {@link HttpUriRequest#abort() aborted}, the exchange should be
+	 * abandoned as soon as possible.
+	 * @param request the request
+	 * @param options the options of the Ajax Task that is sending the request
+	 * @param context the context of the request. Contains the cookie store.
+	 * @return the response. Compressed responses should be decompressed.
+	 * @throws IOException if the request fails
+	 */
+	public HttpResponse execute(HttpUriRequest request, AjaxOptions options, HttpContext context) throws IOException;
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Sends requests with the shared, pooled Apache HTTP Client. This is the default {@link AjaxTransport}.
+ * @author Phil Brown
+ * @see AjaxClient
+ */
+public class ApacheTransport implements AjaxTransport
+{
+	/** Shared instance */
+	private static final ApacheTransport instance = new ApacheTransport();
+
+	/**
+	 * Get the shared instance
+	 * @return the shared transport
+	 */
+	public static ApacheTransport getInstance()
+	{
+		return instance;
+	}
+
+	@Override
+	public HttpResponse execute(HttpUriRequest request, AjaxOptions options, HttpContext context) throws IOException
+	{
+		return AjaxClient.getClient().execute(request, context);
+	}
+}
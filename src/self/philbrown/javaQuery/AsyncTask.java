@@ -15,11 +15,16 @@
  */
 package self.philbrown.javaQuery;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -37,7 +42,6 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public abstract class AsyncTask<Params, Progress, Result>
 {
-	private static final int CORE_POOL_SIZE = 5;
     private static final int MAXIMUM_POOL_SIZE = 10;
     private static final int KEEP_ALIVE = 10;
 
@@ -52,8 +56,23 @@ public abstract class AsyncTask<Params, Progress, Result>
         }
     };
 
-    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(CORE_POOL_SIZE,
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(MAXIMUM_POOL_SIZE,
             MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sWorkQueue, sThreadFactory);
+    
+    static {
+    	//with an unbounded queue, the pool never grows past its core size. Instead, all threads are
+    	//core threads, and idle threads are allowed to time out.
+    	sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** The current execution mode */
+    private static volatile ExecutionMode sMode = ExecutionMode.PLATFORM;
+    /** Runs tasks when the execution mode is {@link ExecutionMode#VIRTUAL} */
+    private static volatile Executor sVirtualExecutor;
+    /** The threads behind {@link #sVirtualExecutor}, which are shut down when it is replaced */
+    private static ExecutorService sVirtualService;
+    /** The concurrency limit of {@link #sVirtualExecutor} */
+    private static int sVirtualConcurrency;
 
     private FutureTask<Result> mFuture = null;
 
@@ -77,10 +96,124 @@ public abstract class AsyncTask<Params, Progress, Result>
          */
         FINISHED,
     }
+    
+    /**
+     * Determines what kind of threads run {@link #doInBackground}
+     * @see AsyncTask#setExecutionMode(ExecutionMode, int)
+     */
+    public enum ExecutionMode {
+    	/**
+    	 * Tasks run on a fixed-size pool of platform threads. This is the default.
+    	 */
+    	PLATFORM,
+    	/**
+    	 * Each task runs on its own virtual thread, so tasks that block (for example, while waiting
+    	 * for a network response) do not tie up a platform thread. If virtual threads are not
+    	 * supported by the JVM, a pool of platform threads that is sized to the concurrency
+    	 * limit is used instead.
+    	 */
+    	VIRTUAL,
+    }
 		
 	public static void clearQueue() {
 		sWorkQueue.clear();
 	}
+	
+	/**
+	 * Get the executor that runs tasks by default
+	 * @return the default executor
+	 */
+	public static Executor getDefaultExecutor() {
+		Executor virtual = sVirtualExecutor;
+		if (sMode == ExecutionMode.VIRTUAL && virtual != null)
+			return virtual;
+		return sExecutor;
+	}
+	
+	/**
+	 * Get the current execution mode
+	 * @return the execution mode
+	 */
+	public static ExecutionMode getExecutionMode() {
+		return sMode;
+	}
+	
+	/**
+	 * Set what kind of threads run tasks that are executed after this call. 
+	 * {@link #onPreExecute} and {@link #onPostExecute} are called the same way in both modes.
+	 * @param mode the execution mode
+	 * @param maxConcurrency in {@link ExecutionMode#VIRTUAL VIRTUAL} mode, the maximum number of
+	 * tasks that can run at once. Tasks beyond this limit wait for a permit. Ignored in 
+	 * {@link ExecutionMode#PLATFORM PLATFORM} mode.
+	 */
+	public static synchronized void setExecutionMode(ExecutionMode mode, int maxConcurrency) {
+		if (mode == ExecutionMode.VIRTUAL && sVirtualExecutor != null && sVirtualConcurrency == maxConcurrency) {
+			//nothing to replace
+			sMode = mode;
+			return;
+		}
+		ExecutorService previous = sVirtualService;
+		if (mode == ExecutionMode.VIRTUAL) {
+			sVirtualExecutor = createVirtualExecutor(maxConcurrency);
+			sVirtualConcurrency = maxConcurrency;
+			sMode = mode;
+		} else {
+			sMode = mode;
+			sVirtualExecutor = null;
+			sVirtualService = null;
+		}
+		//tasks that were already submitted still run, and then the threads end
+		if (previous != null)
+			previous.shutdown();
+	}
+	
+	/**
+	 * Creates an executor that runs each task on a new virtual thread, after acquiring one of
+	 * {@code maxConcurrency} permits. Virtual threads are looked up reflectively, so that this 
+	 * class still runs on JVMs that do not support them. Sets {@link #sVirtualService}.
+	 * @param maxConcurrency the maximum number of tasks that can run at once
+	 * @return the executor
+	 */
+	private static Executor createVirtualExecutor(int maxConcurrency) {
+		final ExecutorService virtual;
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			virtual = (ExecutorService) factory.invoke(null);
+		} catch (Throwable t) {
+			Log.w("AsyncTask", "Virtual threads are not supported. Using a platform thread pool.");
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, KEEP_ALIVE, 
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+			pool.allowCoreThreadTimeOut(true);
+			sVirtualService = pool;
+			return pool;
+		}
+		sVirtualService = virtual;
+		final Semaphore permits = new Semaphore(maxConcurrency, true);
+		return new Executor() {
+			
+			@Override
+			public void execute(final Runnable command) {
+				virtual.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						//blocking a virtual thread is cheap, so tasks wait for a permit on their own thread
+						try {
+							permits.acquire();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+						try {
+							command.run();
+						} finally {
+							permits.release();
+						}
+					}
+				});
+			}
+		};
+	}
 
 
     /**
@@ -162,7 +295,7 @@ public abstract class AsyncTask<Params, Progress, Result>
      * @see #cancel(boolean)
      */
     public final boolean isCancelled() {
-        return mFuture.isCancelled();
+        return mFuture != null && mFuture.isCancelled();
     }
 
     /**
@@ -187,6 +320,8 @@ public abstract class AsyncTask<Params, Progress, Result>
      * @see #onCancelled()
      */
     public final boolean cancel(boolean mayInterruptIfRunning) {
+        if (mFuture == null)
+            return false;
         return mFuture.cancel(mayInterruptIfRunning);
     }
 
@@ -239,6 +374,36 @@ public abstract class AsyncTask<Params, Progress, Result>
      *         {@link AsyncTask.Status#RUNNING} or {@link AsyncTask.Status#FINISHED}.
      */
     public final AsyncTask<Params, Progress, Result> execute(final Params... params) {
+        return executeOnExecutor(getExecutor(), params);
+    }
+    
+    /**
+     * Get the executor used by {@link #execute}. Subclasses can override this method to schedule
+     * their background work differently.
+     * 
+     * @return the executor. By default, this is the {@link #getDefaultExecutor() default executor}
+     * for the current {@link #setExecutionMode(ExecutionMode, int) execution mode}.
+     */
+    protected Executor getExecutor() {
+    	return getDefaultExecutor();
+    }
+    
+    /**
+     * Executes the task with the specified parameters on the given executor. The 
+     * task returns itself (this) so that the caller can keep a reference to it.
+     *
+     * This method must be invoked on the UI thread.
+     *
+     * @param executor The executor that will run {@link #doInBackground}.
+     * @param params The parameters of the task.
+     *
+     * @return This instance of AsyncTask.
+     *
+     * @throws IllegalStateException If {@link #getStatus()} returns either
+     *         {@link AsyncTask.Status#RUNNING} or {@link AsyncTask.Status#FINISHED}.
+     */
+    @SafeVarargs
+    public final AsyncTask<Params, Progress, Result> executeOnExecutor(Executor executor, final Params... params) {
         if (mStatus != Status.PENDING) {
             switch (mStatus) {
                 case RUNNING:
@@ -259,7 +424,8 @@ public abstract class AsyncTask<Params, Progress, Result>
 
 			@Override
 			public Result call() throws Exception {
-				Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+				if (sMode == ExecutionMode.PLATFORM)
+					Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
 				return doInBackground(params);
 			}
         	
@@ -269,6 +435,8 @@ public abstract class AsyncTask<Params, Progress, Result>
         		try {
 					Result r = this.get();
 					onPostExecute(r);
+				} catch (CancellationException e) {
+					onCancelled();
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				} catch (ExecutionException e) {
@@ -276,7 +444,7 @@ public abstract class AsyncTask<Params, Progress, Result>
 				}
         	}
         };
-        sExecutor.execute(mFuture);
+        executor.execute(mFuture);
 
         return this;
     }
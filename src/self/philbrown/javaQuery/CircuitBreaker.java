@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stops sending requests to a host that keeps failing, so that callers fail fast instead of
+ * waiting for timeouts while the host is down. After {@link #setDefaults(int, long) failureThreshold}
+ * consecutive failures, the circuit <em>opens</em> and requests fail immediately. Once the open timeout
+ * has passed, the circuit becomes <em>half-open</em> and a single trial request is allowed. If it
+ * succeeds the circuit <em>closes</em>; otherwise it opens again.
+ * <br>
+ * Connection failures and 5xx responses count as failures.
+ * @author Phil Brown
+ * @see AjaxOptions#circuitBreaker(boolean)
+ */
+public class CircuitBreaker
+{
+	/**
+	 * The state of a circuit
+	 */
+	public enum State
+	{
+		/** Requests are sent normally */
+		CLOSED,
+		/** Requests fail immediately */
+		OPEN,
+		/** A single trial request is allowed */
+		HALF_OPEN
+	}
+
+	/**
+	 * Thrown when a request is not sent because the host's circuit is open
+	 */
+	public static class OpenException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor
+		 * @param host the host
+		 */
+		public OpenException(String host)
+		{
+			super("Circuit open for " + host);
+		}
+	}
+
+	/** Circuit breakers, by host */
+	private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	/** Number of consecutive failures that opens a new circuit */
+	private static volatile int defaultFailureThreshold = 5;
+	/** Amount of time (in milliseconds) a new circuit stays open */
+	private static volatile long defaultOpenTimeout = 30000;
+
+	/** The host */
+	private final String host;
+	/** Number of consecutive failures that opens the circuit */
+	private final int failureThreshold;
+	/** Amount of time (in milliseconds) the circuit stays open */
+	private final long openTimeout;
+	/** The current state */
+	private State state = State.CLOSED;
+	/** Number of consecutive failures */
+	private int failures;
+	/** When the circuit was last opened */
+	private long openedAt;
+	/** Set while the half-open trial request is in progress */
+	private boolean trialInProgress;
+	/** When the half-open trial request was allowed */
+	private long trialStartedAt;
+
+	/**
+	 * Constructor
+	 * @param host the host
+	 * @param failureThreshold number of consecutive failures that opens the circuit
+	 * @param openTimeout amount of time (in milliseconds) the circuit stays open
+	 */
+	public CircuitBreaker(String host, int failureThreshold, long openTimeout)
+	{
+		this.host = host;
+		this.failureThreshold = failureThreshold;
+		this.openTimeout = openTimeout;
+	}
+
+	/**
+	 * Get the circuit breaker of the given host, creating it with the default settings if needed
+	 * @param host the host, as returned by {@link AjaxScheduler#host(String)}
+	 * @return the circuit breaker
+	 */
+	public static CircuitBreaker forHost(String host)
+	{
+		CircuitBreaker breaker = breakers.get(host);
+		if (breaker == null)
+		{
+			breaker = new CircuitBreaker(host, defaultFailureThreshold, defaultOpenTimeout);
+			CircuitBreaker existing = breakers.putIfAbsent(host, breaker);
+			if (existing != null)
+				breaker = existing;
+		}
+		return breaker;
+	}
+
+	/**
+	 * Set the settings used for hosts whose circuit breakers have not been created yet.
+	 * @param failureThreshold number of consecutive failures that opens a circuit. Default is 5.
+	 * @param openTimeout amount of time (in milliseconds) a circuit stays open. Default is 30 seconds.
+	 */
+	public static void setDefaults(int failureThreshold, long openTimeout)
+	{
+		defaultFailureThreshold = failureThreshold;
+		defaultOpenTimeout = openTimeout;
+	}
+
+	/**
+	 * Set the circuit breaker used for the given host, replacing the default one
+	 * @param host the host, as returned by {@link AjaxScheduler#host(String)}
+	 * @param breaker the circuit breaker
+	 */
+	public static void setBreaker(String host, CircuitBreaker breaker)
+	{
+		breakers.put(host, breaker);
+	}
+
+	/**
+	 * Closes every circuit, and forgets all hosts
+	 */
+	public static void resetAll()
+	{
+		breakers.clear();
+	}
+
+	/**
+	 * Checks whether or not a request may be sent. In the half-open state, only the first caller
+	 * is allowed through until its result is reported.
+	 * @return {@code true} if the request may be sent. Otherwise {@code false}.
+	 */
+	public synchronized boolean allowRequest()
+	{
+		switch (state)
+		{
+			case OPEN:
+				if (System.currentTimeMillis() - openedAt < openTimeout)
+					return false;
+				state = State.HALF_OPEN;
+				trialInProgress = true;
+				trialStartedAt = System.currentTimeMillis();
+				return true;
+			case HALF_OPEN:
+				//a trial that never reports its result (for example, because it was cancelled) does not block forever
+				if (trialInProgress && System.currentTimeMillis() - trialStartedAt < openTimeout)
+					return false;
+				trialInProgress = true;
+				trialStartedAt = System.currentTimeMillis();
+				return true;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Reports a successful request
+	 */
+	public synchronized void onSuccess()
+	{
+		failures = 0;
+		trialInProgress = false;
+		state = State.CLOSED;
+	}
+
+	/**
+	 * Reports a failed request
+	 */
+	public synchronized void onFailure()
+	{
+		failures++;
+		trialInProgress = false;
+		if (state == State.HALF_OPEN || failures >= failureThreshold)
+		{
+			if (state != State.OPEN)
+				Log.w("CircuitBreaker", "Opening circuit for " + host);
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Get the current state. An open circuit whose timeout has passed is reported as half-open.
+	 * @return the state
+	 */
+	public synchronized State getState()
+	{
+		if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openTimeout)
+			return State.HALF_OPEN;
+		return state;
+	}
+
+	/**
+	 * Get the host this circuit breaker is for
+	 * @return the host
+	 */
+	public String getHost()
+	{
+		return host;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("CircuitBreaker[%s, %s, failures=%d]", host, getState(), failures);
+	}
+}
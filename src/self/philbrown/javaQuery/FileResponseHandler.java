@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+
+/**
+ * Handles a response by streaming it to a file, and returning that file. The body is written to a
+ * {@code .part} file next to the target, with channel transfers that use a small fixed buffer, so
+ * large downloads never need to fit in memory. The part file is only moved to the target once the
+ * download is complete.
+ * <br>
+ * If {@link AjaxOptions#resume() resume} is set, the part file of an interrupted download is kept,
+ * along with the response's {@code ETag} and {@code Last-Modified} validators. The next download of
+ * the same URL asks only for the remaining bytes, using a {@code Range} request. The {@code If-Range}
+ * header makes sure the server sends the whole file instead if it has changed.
+ * @author Phil Brown
+ * @see AjaxOptions#downloadTarget(File)
+ */
+public class FileResponseHandler implements ResponseHandler<File>
+{
+	/** The maximum number of bytes to transfer between checks for progress and interruption */
+	private static final long TRANSFER_SIZE = 256 * 1024;
+
+	/** The options of the download */
+	private AjaxOptions options;
+
+	/**
+	 * Constructor
+	 * @param options the options of the download. Must provide a {@link AjaxOptions#downloadTarget() target}.
+	 */
+	public FileResponseHandler(AjaxOptions options)
+	{
+		this.options = options;
+	}
+
+	/**
+	 * Get the file that a download is written to until it is complete
+	 * @param target the download target
+	 * @return the part file
+	 */
+	public static File partFile(File target)
+	{
+		return new File(target.getPath() + ".part");
+	}
+
+	/**
+	 * Get the file that holds the validators of a partial download
+	 * @param target the download target
+	 * @return the metadata file
+	 */
+	private static File metaFile(File target)
+	{
+		return new File(target.getPath() + ".part.meta");
+	}
+
+	/**
+	 * Deletes the partial download of the given target, if any
+	 * @param target the download target
+	 */
+	public static void discard(File target)
+	{
+		partFile(target).delete();
+		metaFile(target).delete();
+	}
+
+	/**
+	 * Prepares a download request. Asks for the response without a content coding, so that byte
+	 * ranges refer to the file itself, and, if a partial download of the same URL can be resumed,
+	 * adds the {@code Range} and {@code If-Range} headers.
+	 * @param request the request
+	 * @param options the options of the download
+	 */
+	public static void prepareRequest(HttpRequest request, AjaxOptions options)
+	{
+		if (!request.containsHeader("Accept-Encoding"))
+			request.addHeader("Accept-Encoding", "identity");
+		File target = options.downloadTarget();
+		if (target == null || !options.resume() || request.containsHeader("Range"))
+			return;
+		File part = partFile(target);
+		long length = part.length();
+		if (length == 0)
+			return;
+		Properties meta = readMeta(target);
+		if (meta == null || !options.url().equals(meta.getProperty("url")))
+			return;
+		//without a validator, the server cannot tell whether the part file is still valid
+		String validator = meta.getProperty("etag");
+		if (validator == null || validator.startsWith("W/"))
+			validator = meta.getProperty("lastModified");
+		if (validator == null)
+			return;
+		request.addHeader("Range", "bytes=" + length + "-");
+		request.addHeader("If-Range", validator);
+	}
+
+	@Override
+	public File handleResponse(HttpResponse response) throws ClientProtocolException, IOException
+	{
+		File target = options.downloadTarget();
+		if (target == null)
+			throw new ClientProtocolException("No download target");
+		StatusLine statusLine = response.getStatusLine();
+		if (statusLine.getStatusCode() >= 300)
+			throw new ClientProtocolException("HTTP Response Error " + statusLine.getStatusCode() + ":" + statusLine.getReasonPhrase());
+
+		File part = partFile(target);
+		long offset = 0;
+		long total = -1;
+		if (statusLine.getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT)
+		{
+			//Content-Range: bytes <first>-<last>/<total or *>
+			Header range = response.getFirstHeader("Content-Range");
+			long[] bounds = range == null ? null : parseContentRange(range.getValue());
+			if (bounds == null || bounds[0] != part.length())
+			{
+				discard(target);
+				throw new ClientProtocolException("Unexpected Content-Range");
+			}
+			offset = bounds[0];
+			total = bounds[2];
+		}
+
+		HttpEntity entity = response.getEntity();
+		if (total < 0 && entity != null && entity.getContentLength() >= 0)
+			total = offset + entity.getContentLength();
+
+		if (options.resume())
+			writeMeta(target, response);
+		else
+			metaFile(target).delete();
+
+		File parent = target.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+
+		boolean complete = false;
+		FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try
+		{
+			//a full response replaces any previous partial download
+			channel.truncate(offset);
+			long position = offset;
+			long lastProgress = 0;
+			if (entity != null)
+			{
+				InputStream in = entity.getContent();
+				ReadableByteChannel source = Channels.newChannel(in);
+				try
+				{
+					while (true)
+					{
+						long transferred = channel.transferFrom(source, position, TRANSFER_SIZE);
+						if (transferred <= 0)
+							break;
+						position += transferred;
+						if (Thread.currentThread().isInterrupted())
+							throw new InterruptedIOException("Download interrupted");
+						long now = System.currentTimeMillis();
+						if (options.progress() != null && now - lastProgress >= options.progressInterval())
+						{
+							lastProgress = now;
+							progress(position, total);
+						}
+					}
+				}
+				finally
+				{
+					source.close();
+				}
+			}
+			if (total >= 0 && position != total)
+				throw new IOException("Download incomplete: received " + position + " of " + total + " bytes");
+			channel.force(false);
+			complete = true;
+			if (options.progress() != null)
+				progress(position, total);
+		}
+		finally
+		{
+			channel.close();
+			if (!complete && !options.resume())
+				discard(target);
+		}
+
+		try
+		{
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		metaFile(target).delete();
+		return target;
+	}
+
+	/**
+	 * Calls the {@link AjaxOptions#progress() progress} function
+	 * @param received the number of bytes of the file that have been received, including those of a resumed download
+	 * @param total the size of the file, or -1 if it is not known
+	 */
+	private void progress(long received, long total)
+	{
+		if (options.context() != null)
+			options.progress().invoke(new $(options.context()), received, total);
+		else
+			options.progress().invoke(null, received, total);
+	}
+
+	/**
+	 * Parses the value of a {@code Content-Range} header
+	 * @param value the header value
+	 * @return the first byte, last byte and total length (-1 if unknown), or {@code null} if the value is malformed
+	 */
+	private static long[] parseContentRange(String value)
+	{
+		try
+		{
+			value = value.trim();
+			if (!value.startsWith("bytes "))
+				return null;
+			value = value.substring(6).trim();
+			int dash = value.indexOf('-');
+			int slash = value.indexOf('/');
+			if (dash < 0 || slash < dash)
+				return null;
+			long first = Long.parseLong(value.substring(0, dash).trim());
+			long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+			String length = value.substring(slash + 1).trim();
+			long total = length.equals("*") ? -1 : Long.parseLong(length);
+			return new long[]{first, last, total};
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the validators of a partial download
+	 * @param target the download target
+	 * @return the validators, or {@code null} if there are none
+	 */
+	private static Properties readMeta(File target)
+	{
+		File file = metaFile(target);
+		if (!file.exists())
+			return null;
+		Properties meta = new Properties();
+		InputStream in = null;
+		try
+		{
+			in = new FileInputStream(file);
+			meta.load(in);
+			return meta;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+					//ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Saves the URL and validators of a download, so that it can be resumed if it is interrupted
+	 * @param target the download target
+	 * @param response the response
+	 * @throws IOException if the validators cannot be saved
+	 */
+	private void writeMeta(File target, HttpResponse response) throws IOException
+	{
+		Properties meta = new Properties();
+		meta.setProperty("url", options.url());
+		Header etag = response.getFirstHeader("ETag");
+		if (etag != null)
+			meta.setProperty("etag", etag.getValue());
+		Header lastModified = response.getFirstHeader("Last-Modified");
+		if (lastModified != null)
+			meta.setProperty("lastModified", lastModified.getValue());
+		File file = metaFile(target);
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null)
+			parent.mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try
+		{
+			meta.store(out, null);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
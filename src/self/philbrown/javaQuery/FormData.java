@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.mime.FormBodyPart;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.entity.mime.content.StringBody;
+
+/**
+ * A {@code multipart/form-data} request body, which can be passed to {@link AjaxOptions#data(Object)}.
+ * File and stream parts are not read into memory. Instead, they are copied to the connection, through
+ * a small buffer, as the request is sent. For example:
+ * <pre>
+ * $.ajax(new AjaxOptions().url("http://www.example.com/upload")
+ *                         .type("POST")
+ *                         .data(new FormData().append("name", "nightly")
+ *                                             .append("log", new File("app.log"))));
+ * </pre>
+ * If any part is a stream of unknown length, the body is sent with chunked transfer encoding.
+ * @author Phil Brown
+ */
+public class FormData
+{
+	/** UTF-8 Charset, used for text parts and file names */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The parts of the form */
+	private List<FormBodyPart> parts = new ArrayList<FormBodyPart>();
+
+	/** Whether or not the body is always sent chunked */
+	private boolean chunked;
+
+	/**
+	 * Adds a text part
+	 * @param name the name of the form field
+	 * @param value the value of the field
+	 * @return this
+	 */
+	public FormData append(String name, String value)
+	{
+		try
+		{
+			parts.add(new FormBodyPart(name, new StringBody(value, UTF8)));
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			//UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds a file part, using the name of the file and the {@code application/octet-stream} content type.
+	 * @param name the name of the form field
+	 * @param file the file to upload
+	 * @return this
+	 */
+	public FormData append(String name, File file)
+	{
+		return append(name, file, "application/octet-stream");
+	}
+
+	/**
+	 * Adds a file part, using the name of the file.
+	 * @param name the name of the form field
+	 * @param file the file to upload
+	 * @param mimeType the content type of the file
+	 * @return this
+	 */
+	public FormData append(String name, File file, String mimeType)
+	{
+		parts.add(new FormBodyPart(name, new FileBody(file, file.getName(), mimeType, null)));
+		return this;
+	}
+
+	/**
+	 * Adds a stream part. The length of the stream is not known, so the request is sent with
+	 * chunked transfer encoding, and cannot be retried. The stream is closed once it has been sent.
+	 * @param name the name of the form field
+	 * @param in the content of the part
+	 * @param fileName the file name to send with the part
+	 * @param mimeType the content type of the part
+	 * @return this
+	 */
+	public FormData append(String name, InputStream in, String fileName, String mimeType)
+	{
+		parts.add(new FormBodyPart(name, new InputStreamBody(in, mimeType, fileName)));
+		return this;
+	}
+
+	/**
+	 * Sets whether or not the body is sent with chunked transfer encoding even if its length is known.
+	 * Default is {@code false}.
+	 * @param chunked {@code true} to always send the body chunked
+	 * @return this
+	 */
+	public FormData chunked(boolean chunked)
+	{
+		this.chunked = chunked;
+		return this;
+	}
+
+	/**
+	 * Creates the request entity. The entity sets its own {@code Content-Type} header, which contains
+	 * the boundary of the parts.
+	 * @return the entity
+	 */
+	public HttpEntity toEntity()
+	{
+		MultipartEntity entity = new MultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE, null, UTF8);
+		for (FormBodyPart part : parts)
+		{
+			entity.addPart(part);
+		}
+		//a multipart entity can only be written, so its content is read through a pipe
+		if (!chunked)
+			return new PipedEntity(entity);
+		return new PipedEntity(entity) {
+
+			@Override
+			public long getContentLength()
+			{
+				return -1;
+			}
+
+			@Override
+			public boolean isChunked()
+			{
+				return true;
+			}
+		};
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Wraps a request entity so that it is gzip-compressed as it is written to the connection.
+ * Since the compressed length is not known in advance, the entity is sent chunked. The compressed
+ * content can also be read from {@link #getContent()}, which compresses it as it is read.
+ * @author Phil Brown
+ * @see AjaxOptions#compressData(boolean)
+ */
+public class GzipCompressingEntity extends PipedEntity
+{
+	/**
+	 * Constructor
+	 * @param entity the entity to compress
+	 */
+	public GzipCompressingEntity(HttpEntity entity)
+	{
+		super(entity);
+	}
+
+	@Override
+	public Header getContentEncoding()
+	{
+		return new BasicHeader("Content-Encoding", "gzip");
+	}
+
+	@Override
+	public long getContentLength()
+	{
+		return -1;
+	}
+
+	@Override
+	public boolean isChunked()
+	{
+		return true;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException
+	{
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		wrappedEntity.writeTo(gzip);
+		//finish, rather than close, so that the connection stream stays open
+		gzip.finish();
+	}
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.awt.Component;
+import java.awt.Image;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Loads the images of many views through the {@link ImageLoader}, with a bounded number of images
+ * loading at once. Views that are showing on screen are loaded first. A view's load is cancelled if
+ * the view is removed from its parent before its image arrives. Finished images are applied on the
+ * event dispatch thread once per frame, rather than one event per image.
+ * <br>
+ * Usage:
+ * <pre>
+ * new ImageBatch(thumbnails, urls).size(96, 96).parallelism(8).start();
+ * </pre>
+ * @author Phil Brown
+ * @see $#image(List)
+ */
+public class ImageBatch
+{
+	/** Default number of images loading at once */
+	private static final int DEFAULT_PARALLELISM = 8;
+
+	/** Time between two updates of the views, in milliseconds */
+	private static final int FRAME_DELAY = 16;
+
+	/**
+	 * The image of one view
+	 */
+	private static class Item implements HierarchyListener
+	{
+		/** The view */
+		final Component view;
+		/** The source of the image */
+		final String source;
+		/** The load, once it has started */
+		CompletableFuture<Image> future;
+		/** Set if the view has been removed */
+		boolean removed;
+
+		/**
+		 * Constructor
+		 * @param view the view
+		 * @param source the source of the image
+		 */
+		Item(Component view, String source)
+		{
+			this.view = view;
+			this.source = source;
+		}
+
+		@Override
+		public void hierarchyChanged(HierarchyEvent e)
+		{
+			if ((e.getChangeFlags() & HierarchyEvent.PARENT_CHANGED) != 0 && e.getChanged() == view && view.getParent() == null)
+			{
+				removed = true;
+				if (future != null)
+					future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * A finished load
+	 */
+	private static class Finished
+	{
+		/** The item */
+		Item item;
+		/** The image, or {@code null} if it could not be loaded */
+		Image image;
+		/** The failure, or {@code null} if the image was loaded */
+		Throwable error;
+	}
+
+	/** The views that have not started loading, in the order given */
+	private final LinkedList<Item> waiting = new LinkedList<Item>();
+	/** The views that are loading */
+	private final List<Item> loading = new ArrayList<Item>();
+	/** Loads that have finished, but have not been applied yet */
+	private final ConcurrentLinkedQueue<Finished> finished = new ConcurrentLinkedQueue<Finished>();
+	/** Maximum number of images loading at once */
+	private int parallelism = DEFAULT_PARALLELISM;
+	/** Requested width */
+	private int width = -1;
+	/** Requested height */
+	private int height = -1;
+	/** Invoked when an image cannot be loaded */
+	private Function error;
+	/** Applies finished images, and starts loads. Only used on the event dispatch thread. */
+	private Timer timer;
+
+	/**
+	 * Constructor
+	 * @param views the views. Views without a source are ignored.
+	 * @param sources the file paths or URLs of the images, in the same order as the views
+	 */
+	public ImageBatch(List<? extends Component> views, List<String> sources)
+	{
+		for (int i = 0; i < views.size() && i < sources.size(); i++)
+		{
+			waiting.add(new Item(views.get(i), sources.get(i)));
+		}
+	}
+
+	/**
+	 * Set the maximum number of images loading at once. Default is 8.
+	 * @param parallelism the maximum number of images
+	 * @return this
+	 */
+	public ImageBatch parallelism(int parallelism)
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Set the size the images are decoded at.
+	 * @param width the output width, or -1 for the image width
+	 * @param height the output height, or -1 for the image height
+	 * @return this
+	 */
+	public ImageBatch size(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		return this;
+	}
+
+	/**
+	 * Set the Function that is invoked, on the event dispatch thread, when an image cannot be loaded.
+	 * It receives a javaQuery wrapping the view, and either the Ajax error arguments (see
+	 * {@link AjaxOptions#error(Function)}) or the {@code Throwable} error.
+	 * @param error the function
+	 * @return this
+	 */
+	public ImageBatch error(Function error)
+	{
+		this.error = error;
+		return this;
+	}
+
+	/**
+	 * Starts loading the images
+	 */
+	public void start()
+	{
+		if (SwingUtilities.isEventDispatchThread())
+		{
+			begin();
+		}
+		else
+		{
+			SwingUtilities.invokeLater(new Runnable() {
+
+				@Override
+				public void run() {
+					begin();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Cancels the images that have not been applied yet
+	 */
+	public void cancel()
+	{
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				for (Item item : waiting)
+				{
+					item.view.removeHierarchyListener(item);
+				}
+				waiting.clear();
+				for (Item item : loading)
+				{
+					item.view.removeHierarchyListener(item);
+					item.future.cancel(true);
+				}
+				loading.clear();
+				finished.clear();
+				if (timer != null)
+					timer.stop();
+			}
+		});
+	}
+
+	/**
+	 * Applies images that are already in memory, and starts the frame timer. Runs on the event dispatch thread.
+	 */
+	private void begin()
+	{
+		ImageLoader loader = ImageLoader.getInstance();
+		Iterator<Item> iterator = waiting.iterator();
+		while (iterator.hasNext())
+		{
+			Item item = iterator.next();
+			Image image = loader.peek(item.source, width, height);
+			if (image != null)
+			{
+				$.with(item.view).image(image);
+				iterator.remove();
+			}
+			else
+			{
+				item.view.addHierarchyListener(item);
+			}
+		}
+		if (waiting.isEmpty())
+			return;
+		timer = new Timer(FRAME_DELAY, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				frame();
+			}
+		});
+		timer.setCoalesce(true);
+		launch();
+		timer.start();
+	}
+
+	/**
+	 * Applies the images that finished since the last frame, then starts more loads. Runs on the event dispatch thread.
+	 */
+	private void frame()
+	{
+		Finished done;
+		while ((done = finished.poll()) != null)
+		{
+			Item item = done.item;
+			loading.remove(item);
+			item.view.removeHierarchyListener(item);
+			if (item.removed)
+				continue;
+			if (done.image != null)
+			{
+				$.with(item.view).image(done.image);
+			}
+			else if (error != null && !(done.error instanceof CancellationException))
+			{
+				if (done.error instanceof AjaxException)
+				{
+					AjaxException e = (AjaxException) done.error;
+					error.invoke($.with(item.view), e.getError(), e.getStatus(), e.getReason(), e.getHeaders());
+				}
+				else
+				{
+					error.invoke($.with(item.view), done.error);
+				}
+			}
+		}
+		launch();
+		if (waiting.isEmpty() && loading.isEmpty())
+			timer.stop();
+	}
+
+	/**
+	 * Starts loads until {@link #parallelism} images are loading, picking views that are showing first.
+	 * Runs on the event dispatch thread.
+	 */
+	private void launch()
+	{
+		ImageLoader loader = ImageLoader.getInstance();
+		while (loading.size() < parallelism && !waiting.isEmpty())
+		{
+			Item next = null;
+			Iterator<Item> iterator = waiting.iterator();
+			while (iterator.hasNext())
+			{
+				Item item = iterator.next();
+				if (item.removed)
+				{
+					item.view.removeHierarchyListener(item);
+					iterator.remove();
+					continue;
+				}
+				if (item.view.isShowing())
+				{
+					next = item;
+					iterator.remove();
+					break;
+				}
+			}
+			if (next == null)
+			{
+				next = waiting.poll();
+				if (next == null)
+					break;
+			}
+
+			final Item item = next;
+			loading.add(item);
+			item.future = loader.load(item.source, width, height);
+			item.future.whenComplete(new BiConsumer<Image, Throwable>() {
+
+				@Override
+				public void accept(Image image, Throwable error) {
+					Finished done = new Finished();
+					done.item = item;
+					done.image = image;
+					done.error = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+					finished.add(done);
+				}
+			});
+		}
+	}
+}
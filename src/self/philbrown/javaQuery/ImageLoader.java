@@ -0,0 +1,726 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Loads images from files and URLs. Images are decoded with source subsampling, so that an image
+ * requested at a small size is never decoded at its full size, and decoding always runs on a
+ * background thread. Decoded images are kept in a memory cache, which is limited by the number of
+ * bytes the images use and evicts the least recently used images first. The memory cache is keyed
+ * by the source and the requested size. Downloaded images are also saved, still encoded, to a disk
+ * cache, so that they are not downloaded again. The disk cache assumes that the image at a URL does
+ * not change.
+ * @author Phil Brown
+ * @see $#image(String, int, int, Function)
+ */
+public class ImageLoader
+{
+	/** Accepts the completed files of the disk cache, which are named with a SHA-1 hash. Part files of downloads in progress are skipped. */
+	private static final FileFilter CACHE_ENTRIES = new FileFilter() {
+
+		@Override
+		public boolean accept(File file) {
+			return file.isFile() && file.getName().matches("[0-9a-f]{40}");
+		}
+	};
+
+	/** Shared instance */
+	private static ImageLoader instance;
+
+	/** Decodes images */
+	private final ExecutorService decoder;
+
+	/** Decoded images, in least recently used order */
+	private final LinkedHashMap<String, Image> memory = new LinkedHashMap<String, Image>(64, 0.75f, true);
+
+	/** The number of bytes used by the images in the memory cache */
+	private long memorySize;
+
+	/** The maximum number of bytes used by the images in the memory cache */
+	private long maxMemorySize = Runtime.getRuntime().maxMemory() / 8;
+
+	/** Loads in progress, by memory cache key. Guarded by itself. */
+	private final HashMap<String, Load> pending = new HashMap<String, Load>();
+
+	/** The directory of the disk cache */
+	private File diskCacheDirectory = new File(System.getProperty("java.io.tmpdir"), "javaQuery-images");
+
+	/** The maximum number of bytes used by the disk cache */
+	private long maxDiskCacheSize = 64 * 1024 * 1024;
+
+	/** The number of bytes used by the disk cache, or -1 if it has not been measured */
+	private final AtomicLong diskCacheSize = new AtomicLong(-1);
+
+	/**
+	 * Constructor
+	 */
+	protected ImageLoader()
+	{
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+				                                             new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "javaQuery image decoder " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		decoder = executor;
+	}
+
+	/**
+	 * Get the shared instance
+	 * @return the shared image loader
+	 */
+	public static synchronized ImageLoader getInstance()
+	{
+		if (instance == null)
+			instance = new ImageLoader();
+		return instance;
+	}
+
+	/**
+	 * Set the maximum number of bytes used by the decoded images in the memory cache.
+	 * Default is one eighth of the maximum heap size.
+	 * @param bytes the memory cache size
+	 */
+	public void setMemoryCacheSize(long bytes)
+	{
+		synchronized (memory)
+		{
+			maxMemorySize = bytes;
+			trimMemory();
+		}
+	}
+
+	/**
+	 * Set the directory of the disk cache. Default is "javaQuery-images" in the temporary directory.
+	 * @param directory the disk cache directory
+	 */
+	public void setDiskCacheDirectory(File directory)
+	{
+		diskCacheDirectory = directory;
+		diskCacheSize.set(-1);
+	}
+
+	/**
+	 * Set the maximum number of bytes used by the disk cache. Default is 64 MB.
+	 * @param bytes the disk cache size, or 0 to not save downloaded images
+	 */
+	public void setDiskCacheSize(long bytes)
+	{
+		maxDiskCacheSize = bytes;
+	}
+
+	/**
+	 * Removes all images from the memory and disk caches
+	 */
+	public void clear()
+	{
+		synchronized (memory)
+		{
+			memory.clear();
+			memorySize = 0;
+		}
+		File[] files = diskCacheDirectory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+				file.delete();
+		}
+		diskCacheSize.set(0);
+	}
+
+	/**
+	 * Get an image from the memory cache
+	 * @param source file path, file URL ("file://...") or URL of the image
+	 * @param width the requested width, or -1 for the image width
+	 * @param height the requested height, or -1 for the image height
+	 * @return the image, or {@code null} if it is not in the memory cache
+	 */
+	public Image peek(String source, int width, int height)
+	{
+		synchronized (memory)
+		{
+			return memory.get(key(source, width, height));
+		}
+	}
+
+	/**
+	 * A load in progress, which is shared by all callers that request the same image at the same size
+	 */
+	private static class Load
+	{
+		/** Completed with the image */
+		final CompletableFuture<Image> result = new CompletableFuture<Image>();
+		/** The number of callers waiting for the image. Guarded by {@link ImageLoader#pending}. */
+		int waiters;
+		/** Set once every caller has cancelled */
+		volatile boolean cancelled;
+		/** Reads and decodes the image */
+		volatile CompletableFuture<Image> work;
+		/** Downloads the image, if it is not a local file */
+		volatile CompletableFuture<AjaxResponse> request;
+
+		/**
+		 * Stops the work of a load that no caller is waiting for
+		 */
+		void stop()
+		{
+			CompletableFuture<AjaxResponse> request = this.request;
+			if (request != null)
+				request.cancel(true);
+			CompletableFuture<Image> work = this.work;
+			if (work != null)
+				work.cancel(false);
+		}
+	}
+
+	/**
+	 * Loads an image. If only one of {@code width} or {@code height} is given, the image is scaled to it
+	 * and keeps its aspect ratio.
+	 * @param source file path, file URL ("file://...") or URL of the image
+	 * @param width the requested width, or -1 for the image width
+	 * @param height the requested height, or -1 for the image height
+	 * @return a future that is completed with the image on a background thread, or immediately if it
+	 * is in the memory cache. If the image cannot be loaded, the future is completed exceptionally.
+	 * Cancelling the future stops the download and decoding, unless another caller is waiting for the
+	 * same image.
+	 */
+	public CompletableFuture<Image> load(final String source, final int width, final int height)
+	{
+		final String key = key(source, width, height);
+		Image image = peek(source, width, height);
+		if (image != null)
+			return CompletableFuture.completedFuture(image);
+
+		final Load load;
+		boolean created = false;
+		synchronized (pending)
+		{
+			Load existing = pending.get(key);
+			if (existing == null)
+			{
+				existing = new Load();
+				pending.put(key, existing);
+				created = true;
+			}
+			existing.waiters++;
+			load = existing;
+		}
+		if (created)
+		{
+			try
+			{
+				load.work = start(load, source, width, height);
+			}
+			catch (RuntimeException e)
+			{
+				//nothing was started (for example, no temporary file could be created), so the load fails like any other
+				CompletableFuture<Image> failed = new CompletableFuture<Image>();
+				failed.completeExceptionally(e);
+				load.work = failed;
+			}
+			load.work.whenComplete(new BiConsumer<Image, Throwable>() {
+
+				@Override
+				public void accept(Image image, Throwable error) {
+					if (image != null)
+						put(key, image);
+					synchronized (pending)
+					{
+						if (pending.get(key) == load)
+							pending.remove(key);
+					}
+					if (error != null)
+						load.result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+					else
+						load.result.complete(image);
+				}
+			});
+			if (load.cancelled)
+				load.stop();
+		}
+
+		//callers get their own future, so that one caller cannot complete or cancel another caller's load
+		final CompletableFuture<Image> future = new CompletableFuture<Image>() {
+
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				if (cancelled)
+					release(key, load);
+				return cancelled;
+			}
+		};
+		load.result.whenComplete(new BiConsumer<Image, Throwable>() {
+
+			@Override
+			public void accept(Image image, Throwable error) {
+				if (error != null)
+					future.completeExceptionally(error);
+				else
+					future.complete(image);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Called when a caller cancels a load. Stops the load once no caller is waiting for it.
+	 * @param key the memory cache key
+	 * @param load the load
+	 */
+	private void release(String key, Load load)
+	{
+		synchronized (pending)
+		{
+			if (--load.waiters > 0 || load.result.isDone())
+				return;
+			if (pending.get(key) == load)
+				pending.remove(key);
+		}
+		load.cancelled = true;
+		load.stop();
+		load.result.cancel(false);
+	}
+
+	/**
+	 * Starts reading and decoding an image
+	 * @param load the load
+	 * @param source the source of the image
+	 * @param width the requested width
+	 * @param height the requested height
+	 * @return the decoded image
+	 */
+	private CompletableFuture<Image> start(Load load, final String source, final int width, final int height)
+	{
+		final File local = localFile(source);
+		if (local != null)
+		{
+			return CompletableFuture.supplyAsync(new Supplier<Image>() {
+
+				@Override
+				public Image get() {
+					try
+					{
+						return decode(local, width, height);
+					}
+					catch (IOException e)
+					{
+						throw new CompletionException(e);
+					}
+				}
+			}, decoder);
+		}
+		if (!source.startsWith("http://") && !source.startsWith("https://"))
+		{
+			return CompletableFuture.supplyAsync(new Supplier<Image>() {
+
+				@Override
+				public Image get() {
+					try
+					{
+						InputStream in = new URL(source).openStream();
+						try
+						{
+							return decode(in, width, height);
+						}
+						finally
+						{
+							in.close();
+						}
+					}
+					catch (IOException e)
+					{
+						throw new CompletionException(e);
+					}
+				}
+			}, decoder);
+		}
+
+		final File cached = diskFile(source);
+		if (maxDiskCacheSize > 0 && cached.exists())
+		{
+			return CompletableFuture.supplyAsync(new Supplier<Image>() {
+
+				@Override
+				public Image get() {
+					try
+					{
+						//keep recently used files in the disk cache
+						cached.setLastModified(System.currentTimeMillis());
+						return decode(cached, width, height);
+					}
+					catch (IOException e)
+					{
+						cached.delete();
+						throw new CompletionException(e);
+					}
+				}
+			}, decoder);
+		}
+
+		final File target = maxDiskCacheSize > 0 ? cached : tempFile();
+		AjaxOptions options = new AjaxOptions().url(source)
+				                               .type("GET")
+				                               .dataType("file")
+				                               .downloadTarget(target)
+				                               .coalesce(true)
+				                               .global(false);
+		CompletableFuture<AjaxResponse> request = $.ajaxAsync(options);
+		load.request = request;
+		return request.thenApplyAsync(new java.util.function.Function<AjaxResponse, Image>() {
+
+			@Override
+			public Image apply(AjaxResponse response) {
+				try
+				{
+					if (target == cached)
+						addToDiskCache(cached);
+					return decode(target, width, height);
+				}
+				catch (IOException e)
+				{
+					target.delete();
+					throw new CompletionException(e);
+				}
+				finally
+				{
+					if (target != cached)
+						target.delete();
+				}
+			}
+		}, decoder);
+	}
+
+	/**
+	 * Adds an image to the memory cache
+	 * @param key the memory cache key
+	 * @param image the image
+	 */
+	private void put(String key, Image image)
+	{
+		long size = sizeOf(image);
+		synchronized (memory)
+		{
+			if (size > maxMemorySize)
+				return;
+			Image previous = memory.put(key, image);
+			if (previous != null)
+				memorySize -= sizeOf(previous);
+			memorySize += size;
+			trimMemory();
+		}
+	}
+
+	/**
+	 * Evicts the least recently used images until the memory cache fits its budget. Must hold the lock on {@link #memory}.
+	 */
+	private void trimMemory()
+	{
+		Iterator<Map.Entry<String, Image>> iterator = memory.entrySet().iterator();
+		while (memorySize > maxMemorySize && iterator.hasNext())
+		{
+			memorySize -= sizeOf(iterator.next().getValue());
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Records a new file in the disk cache, and deletes the least recently used files if the cache is too large.
+	 * Only completed entries are counted and deleted, so downloads in progress keep their part files.
+	 * @param file the new file
+	 */
+	private void addToDiskCache(File file)
+	{
+		if (diskCacheSize.get() < 0)
+		{
+			long size = 0;
+			File[] files = diskCacheDirectory.listFiles(CACHE_ENTRIES);
+			if (files != null)
+			{
+				for (File f : files)
+					size += f.length();
+			}
+			diskCacheSize.compareAndSet(-1, size);
+		}
+		else
+		{
+			diskCacheSize.addAndGet(file.length());
+		}
+		if (diskCacheSize.get() <= maxDiskCacheSize)
+			return;
+		synchronized (diskCacheSize)
+		{
+			File[] files = diskCacheDirectory.listFiles(CACHE_ENTRIES);
+			if (files == null)
+				return;
+			Arrays.sort(files, new Comparator<File>() {
+
+				@Override
+				public int compare(File a, File b) {
+					return Long.compare(a.lastModified(), b.lastModified());
+				}
+			});
+			long size = 0;
+			for (File f : files)
+				size += f.length();
+			for (int i = 0; i < files.length && size > maxDiskCacheSize; i++)
+			{
+				if (files[i].equals(file))
+					continue;
+				long length = files[i].length();
+				if (files[i].delete())
+					size -= length;
+			}
+			diskCacheSize.set(size);
+		}
+	}
+
+	/**
+	 * Decodes an image file
+	 * @param file the file
+	 * @param width the requested width, or -1 for the image width
+	 * @param height the requested height, or -1 for the image height
+	 * @return the image
+	 * @throws IOException if the file cannot be read or decoded
+	 */
+	public static BufferedImage decode(File file, int width, int height) throws IOException
+	{
+		ImageInputStream in = new FileImageInputStream(file);
+		try
+		{
+			return decode(in, width, height);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Decodes an image stream. The stream is not closed.
+	 * @param in the stream
+	 * @param width the requested width, or -1 for the image width
+	 * @param height the requested height, or -1 for the image height
+	 * @return the image
+	 * @throws IOException if the stream cannot be read or decoded
+	 */
+	public static BufferedImage decode(InputStream in, int width, int height) throws IOException
+	{
+		//cache in memory, rather than in a temporary file
+		ImageInputStream stream = new MemoryCacheImageInputStream(in);
+		try
+		{
+			return decode(stream, width, height);
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	/**
+	 * Decodes an image, skipping source pixels so that it is not decoded larger than needed, then scales it
+	 * to the requested size.
+	 * @param in the image
+	 * @param width the requested width, or -1 for the image width
+	 * @param height the requested height, or -1 for the image height
+	 * @return the image
+	 * @throws IOException if the image cannot be decoded
+	 */
+	private static BufferedImage decode(ImageInputStream in, int width, int height) throws IOException
+	{
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext())
+			throw new IOException("Unsupported image format");
+		ImageReader reader = readers.next();
+		try
+		{
+			reader.setInput(in, true, true);
+			int sourceWidth = reader.getWidth(0);
+			int sourceHeight = reader.getHeight(0);
+			if (width <= 0 && height <= 0)
+				return reader.read(0);
+			if (width <= 0)
+				width = Math.max(1, (int) Math.round((double) sourceWidth * height / sourceHeight));
+			else if (height <= 0)
+				height = Math.max(1, (int) Math.round((double) sourceHeight * width / sourceWidth));
+
+			ImageReadParam param = reader.getDefaultReadParam();
+			int subsampling = Math.max(1, Math.min(sourceWidth / width, sourceHeight / height));
+			if (subsampling > 1)
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+			BufferedImage image = reader.read(0, param);
+			if (image.getWidth() == width && image.getHeight() == height)
+				return image;
+			return scale(image, width, height);
+		}
+		finally
+		{
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Scales an image
+	 * @param image the image
+	 * @param width the new width
+	 * @param height the new height
+	 * @return the scaled image
+	 */
+	private static BufferedImage scale(BufferedImage image, int width, int height)
+	{
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage scaled = new BufferedImage(width, height, type);
+		Graphics2D g = scaled.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(image, 0, 0, width, height, null);
+		g.dispose();
+		return scaled;
+	}
+
+	/**
+	 * Estimates the number of bytes used by an image
+	 * @param image the image
+	 * @return the estimated size
+	 */
+	private static long sizeOf(Image image)
+	{
+		if (image instanceof BufferedImage)
+		{
+			BufferedImage buffered = (BufferedImage) image;
+			return (long) buffered.getWidth() * buffered.getHeight() * Math.max(1, buffered.getColorModel().getPixelSize() / 8);
+		}
+		return (long) Math.max(1, image.getWidth(null)) * Math.max(1, image.getHeight(null)) * 4;
+	}
+
+	/**
+	 * Get the memory cache key of an image
+	 * @param source the source
+	 * @param width the requested width
+	 * @param height the requested height
+	 * @return the key
+	 */
+	private static String key(String source, int width, int height)
+	{
+		return source + " " + Math.max(-1, width) + "x" + Math.max(-1, height);
+	}
+
+	/**
+	 * Get the local file of a source
+	 * @param source file path, file URL ("file://...") or URL
+	 * @return the file, or {@code null} if the source is not a local file
+	 */
+	private static File localFile(String source)
+	{
+		if (source.startsWith("file://"))
+			return new File(source.substring(7));
+		try
+		{
+			new URL(source);
+			return null;
+		}
+		catch (MalformedURLException e)
+		{
+			return new File(source);
+		}
+	}
+
+	/**
+	 * Get the disk cache file of a URL
+	 * @param url the URL
+	 * @return the file, which is named with the SHA-1 hash of the URL
+	 */
+	private File diskFile(String url)
+	{
+		try
+		{
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(url.getBytes(Charset.forName("UTF-8")));
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash)
+				name.append(String.format("%02x", b & 0xff));
+			return new File(diskCacheDirectory, name.toString());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			//SHA-1 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Get a temporary file for a download that is not kept in the disk cache
+	 * @return the file
+	 */
+	private static File tempFile()
+	{
+		try
+		{
+			File file = File.createTempFile("javaQuery", ".img");
+			file.deleteOnExit();
+			return file;
+		}
+		catch (IOException e)
+		{
+			throw new CompletionException(e);
+		}
+	}
+}
@@ -17,24 +17,30 @@
 package self.philbrown.javaQuery;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.ParseException;
 import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.entity.ContentType;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
- * Handle an HttpResponse as a {@link JSONObject} or {@link JSONArray}. 
+ * Handle an HttpResponse as a {@link JSONObject} or {@link JSONArray}. The response is parsed
+ * directly from the entity stream, using the charset declared in the {@code Content-Type} header.
  * @author Phil Brown
  */
 public class JSONResponseHandler implements ResponseHandler<Object> 
 {
+	/** JSON text is UTF-8 unless the server declares otherwise */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	
 	@Override
 	public Object handleResponse(HttpResponse response) throws ClientProtocolException, IOException 
@@ -50,29 +56,53 @@ public class JSONResponseHandler implements ResponseHandler<Object>
         if (entity == null) 
         	return null;
         
-        String json = null;
+        Reader reader = new InputStreamReader(entity.getContent(), getCharset(entity));
         try 
         {
-        	json = EntityUtils.toString(entity);
-        	if (json.startsWith("{"))
+        	//tokenize straight from the stream, so that parsing overlaps with the download
+        	//and the response is never held in memory as a String.
+        	JSONTokener tokener = new JSONTokener(reader);
+        	char first = tokener.nextClean();
+        	tokener.back();
+        	if (first == '{')
         	{
-        		return new JSONObject(json);
+        		return new JSONObject(tokener);
         	}
         	else
         	{
-        		return new JSONArray(json);
+        		return new JSONArray(tokener);
         	}
         	
 		} 
-        catch (ParseException e) 
-        {
-			throw e;
-		} 
         catch (JSONException e) 
         {
         	throw new IOException("Received malformed JSON");
         	
 		}
+        finally
+        {
+        	reader.close();
+        }
+	}
+	
+	/**
+	 * Get the charset of the given entity, as declared by its {@code Content-Type} header.
+	 * @param entity the response entity
+	 * @return the declared charset, or UTF-8 if none is declared or the declared charset is not supported.
+	 */
+	private static Charset getCharset(HttpEntity entity)
+	{
+		try
+		{
+			ContentType contentType = ContentType.get(entity);
+			if (contentType != null && contentType.getCharset() != null)
+				return contentType.getCharset();
+		}
+		catch (Exception e)
+		{
+			Log.w("javaQuery", "Invalid Content-Type charset. Defaulting to UTF-8.");
+		}
+		return UTF_8;
 	}
 
 }
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookiePathComparator;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.cookie.MalformedCookieException;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.cookie.BestMatchSpec;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Sends requests with the JDK {@link HttpClient}, which negotiates HTTP/2 where the server supports it.
+ * With HTTP/2, concurrent requests to the same host are multiplexed over a single connection.
+ * Responses are received asynchronously, and the waiting thread can be interrupted to abandon the exchange.
+ * Cookies are sent and stored with the same rules as the Apache client.
+ * <br>
+ * To use this transport for all requests, call:
+ * <pre>
+ * $.ajaxSetup(new AjaxOptions().transport(JdkHttpTransport.getInstance()));
+ * </pre>
+ * @author Phil Brown
+ */
+public class JdkHttpTransport implements AjaxTransport
+{
+	/** Headers that the JDK client sets itself, and does not allow requests to set */
+	private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(Arrays.asList(
+			"connection", "content-length", "expect", "host", "upgrade", "keep-alive", "transfer-encoding", "te"));
+	/** HTTP/2 protocol version, used for the response status line */
+	private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+	/** Shared instance */
+	private static JdkHttpTransport instance;
+
+	/** The client */
+	private final HttpClient client;
+
+	/**
+	 * Constructor. Creates a client that prefers HTTP/2 and follows redirects.
+	 */
+	public JdkHttpTransport()
+	{
+		this(HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+				                    .followRedirects(HttpClient.Redirect.NORMAL)
+				                    .build());
+	}
+
+	/**
+	 * Constructor
+	 * @param client the client used to send requests
+	 */
+	public JdkHttpTransport(HttpClient client)
+	{
+		this.client = client;
+	}
+
+	/**
+	 * Get the shared instance
+	 * @return the shared transport
+	 */
+	public static synchronized JdkHttpTransport getInstance()
+	{
+		if (instance == null)
+			instance = new JdkHttpTransport();
+		return instance;
+	}
+
+	@Override
+	public HttpResponse execute(HttpUriRequest request, AjaxOptions options, HttpContext context) throws IOException
+	{
+		HttpRequest jdkRequest = convert(request, options, context);
+		final CompletableFuture<java.net.http.HttpResponse<InputStream>> future = client.sendAsync(jdkRequest, BodyHandlers.ofInputStream());
+		//aborting the request cancels the exchange, without interrupting the waiting thread
+		onAbort(request, new Runnable() {
+
+			@Override
+			public void run() {
+				future.cancel(true);
+			}
+		});
+		java.net.http.HttpResponse<InputStream> jdkResponse;
+		try
+		{
+			jdkResponse = future.get();
+		}
+		catch (CancellationException e)
+		{
+			throw new InterruptedIOException("Request aborted");
+		}
+		catch (InterruptedException e)
+		{
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Request interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof HttpTimeoutException)
+			{
+				//report timeouts the same way as the Apache client
+				SocketTimeoutException timeout = new SocketTimeoutException(cause.getMessage());
+				timeout.initCause(cause);
+				throw timeout;
+			}
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		}
+		//aborting the request while the body is read closes the body
+		final InputStream body = jdkResponse.body();
+		onAbort(request, new Runnable() {
+
+			@Override
+			public void run() {
+				try
+				{
+					body.close();
+				}
+				catch (IOException e)
+				{
+					//already closed
+				}
+			}
+		});
+		return convert(jdkResponse, context);
+	}
+
+	/**
+	 * Sets the action that is run when the request is {@link HttpUriRequest#abort() aborted}
+	 * @param request the request
+	 * @param action the action
+	 * @throws IOException if the request has already been aborted. The action is run first.
+	 */
+	private static void onAbort(HttpUriRequest request, final Runnable action) throws IOException
+	{
+		if (request instanceof AbortableHttpRequest)
+		{
+			try
+			{
+				((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+
+					@Override
+					public void releaseConnection() {}
+
+					@Override
+					public void abortConnection() {
+						action.run();
+					}
+				});
+				return;
+			}
+			catch (IOException e)
+			{
+				//already aborted
+			}
+		}
+		if (request.isAborted())
+		{
+			action.run();
+			throw new InterruptedIOException("Request aborted");
+		}
+	}
+
+	/**
+	 * Creates a JDK request from an Apache request
+	 * @param request the Apache request
+	 * @param options the Ajax options
+	 * @param context the request context
+	 * @return the JDK request
+	 * @throws IOException if the request cannot be prepared
+	 */
+	private HttpRequest convert(HttpUriRequest request, AjaxOptions options, HttpContext context) throws IOException
+	{
+		try
+		{
+			//advertise the same encodings as the Apache client
+			new RequestAcceptEncoding().process(request, context);
+		}
+		catch (HttpException e)
+		{
+			throw new IOException(e);
+		}
+
+		HttpRequest.Builder builder = HttpRequest.newBuilder(request.getURI());
+		for (Header header : request.getAllHeaders())
+		{
+			if (!RESTRICTED_HEADERS.contains(header.getName().toLowerCase(Locale.US)))
+				builder.header(header.getName(), header.getValue());
+		}
+
+		BodyPublisher body = BodyPublishers.noBody();
+		if (request instanceof HttpEntityEnclosingRequest)
+		{
+			final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			if (entity != null)
+			{
+				if (entity.getContentType() != null && !request.containsHeader("Content-Type"))
+					builder.header("Content-Type", entity.getContentType().getValue());
+				if (entity.getContentEncoding() != null && !request.containsHeader("Content-Encoding"))
+					builder.header("Content-Encoding", entity.getContentEncoding().getValue());
+				body = publisher(entity);
+			}
+		}
+		builder.method(request.getMethod(), body);
+
+		CookieStore cookies = (CookieStore) context.getAttribute(ClientContext.COOKIE_STORE);
+		if (cookies != null && !request.containsHeader("Cookie"))
+		{
+			//only send the cookies whose domain, path, expiry and secure flag match the request
+			CookieSpec spec = new BestMatchSpec();
+			CookieOrigin origin = origin(request.getURI());
+			Date now = new Date();
+			List<Cookie> matched = new ArrayList<Cookie>();
+			for (Cookie c : cookies.getCookies())
+			{
+				if (!c.isExpired(now) && spec.match(c, origin))
+					matched.add(c);
+			}
+			if (!matched.isEmpty())
+			{
+				Collections.sort(matched, new CookiePathComparator());
+				for (Header header : spec.formatCookies(matched))
+					builder.header(header.getName(), header.getValue());
+			}
+		}
+
+		//AjaxTask sets the timeout of each attempt on the request, shortened to the time left until the deadline
+		int timeout = HttpConnectionParams.getSoTimeout(request.getParams());
+		if (timeout <= 0)
+			timeout = options.timeout();
+		if (timeout > 0)
+			builder.timeout(Duration.ofMillis(timeout));
+		return builder.build();
+	}
+
+	/**
+	 * Creates a body publisher for a request entity. The entity is streamed, so the body is never held in
+	 * memory. Bodies of unknown length are sent chunked.
+	 * @param entity the entity
+	 * @return the body publisher
+	 */
+	private static BodyPublisher publisher(final HttpEntity entity)
+	{
+		BodyPublisher stream = BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+
+			@Override
+			public InputStream get() {
+				try
+				{
+					return entity.getContent();
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+		if (entity.getContentLength() >= 0 && !entity.isChunked())
+			return BodyPublishers.fromPublisher(stream, entity.getContentLength());
+		return stream;
+	}
+
+	/**
+	 * Creates an Apache response from a JDK response. The body is not read.
+	 * @param jdkResponse the JDK response
+	 * @param context the request context
+	 * @return the Apache response
+	 * @throws IOException if the response uses an unsupported content coding
+	 */
+	private static HttpResponse convert(java.net.http.HttpResponse<InputStream> jdkResponse, HttpContext context) throws IOException
+	{
+		int status = jdkResponse.statusCode();
+		ProtocolVersion version = jdkResponse.version() == HttpClient.Version.HTTP_2 ? HTTP_2 : HttpVersion.HTTP_1_1;
+		String reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.US);
+		BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(version, status, reason == null ? "" : reason));
+		for (Map.Entry<String, List<String>> header : jdkResponse.headers().map().entrySet())
+		{
+			if (header.getKey().startsWith(":"))
+				continue;
+			for (String value : header.getValue())
+				response.addHeader(header.getKey(), value);
+		}
+
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContent(jdkResponse.body());
+		Header length = response.getFirstHeader("Content-Length");
+		try
+		{
+			entity.setContentLength(length == null ? -1 : Long.parseLong(length.getValue()));
+		}
+		catch (NumberFormatException e)
+		{
+			entity.setContentLength(-1);
+		}
+		entity.setContentType(response.getFirstHeader("Content-Type"));
+		entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+		response.setEntity(entity);
+
+		try
+		{
+			//decompress the same way as the Apache client
+			new ResponseContentEncoding().process(response, context);
+		}
+		catch (HttpException e)
+		{
+			jdkResponse.body().close();
+			throw new IOException(e);
+		}
+
+		CookieStore cookies = (CookieStore) context.getAttribute(ClientContext.COOKIE_STORE);
+		if (cookies != null)
+			storeCookies(response, origin(jdkResponse.uri()), cookies);
+		return response;
+	}
+
+	/**
+	 * Adds the cookies set by a response to a cookie store. Cookies that the origin is not allowed to set are ignored.
+	 * @param response the response
+	 * @param origin the origin of the response, after redirects
+	 * @param cookies the cookie store
+	 */
+	private static void storeCookies(HttpResponse response, CookieOrigin origin, CookieStore cookies)
+	{
+		CookieSpec spec = new BestMatchSpec();
+		for (Header header : response.getHeaders("Set-Cookie"))
+		{
+			try
+			{
+				for (Cookie cookie : spec.parse(header, origin))
+				{
+					try
+					{
+						spec.validate(cookie, origin);
+						cookies.addCookie(cookie);
+					}
+					catch (MalformedCookieException e)
+					{
+						Log.w("Ajax", "Cookie rejected: " + e.getMessage());
+					}
+				}
+			}
+			catch (MalformedCookieException e)
+			{
+				Log.w("Ajax", "Invalid cookie header: " + header.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Get the origin of a request, which determines the cookies that are sent to it, and that it may set
+	 * @param uri the request URI
+	 * @return the origin
+	 */
+	private static CookieOrigin origin(URI uri)
+	{
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		int port = uri.getPort() >= 0 ? uri.getPort() : (secure ? 443 : 80);
+		String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+		return new CookieOrigin(uri.getHost(), port, path, secure);
+	}
+}
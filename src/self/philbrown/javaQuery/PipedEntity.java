@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Wraps an entity so that its content can be read, as well as written. This is used for entities
+ * that are produced as they are written (such as multipart and compressed entities): the content is
+ * written to a pipe by another thread, so it is never held in memory.
+ * @author Phil Brown
+ */
+class PipedEntity extends HttpEntityWrapper
+{
+	/** Buffer size of the pipe */
+	private static final int PIPE_SIZE = 64 * 1024;
+
+	/**
+	 * Constructor
+	 * @param entity the entity to wrap
+	 */
+	PipedEntity(HttpEntity entity)
+	{
+		super(entity);
+	}
+
+	/**
+	 * Get the content that {@link #writeTo(java.io.OutputStream) writeTo} writes. Each call starts a new writer thread.
+	 * @return the content
+	 * @throws IOException if the pipe cannot be created
+	 */
+	@Override
+	public InputStream getContent() throws IOException
+	{
+		final PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+		final PipedOutputStream out = new PipedOutputStream(in);
+		Thread writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try
+				{
+					writeTo(out);
+					out.close();
+				}
+				catch (IOException e)
+				{
+					//leaving the pipe open makes the reader fail once this thread has finished,
+					//rather than see a truncated body
+					Log.w("Ajax", "Could not write entity: " + e.getMessage());
+				}
+			}
+		}, "javaQuery entity");
+		writer.setDaemon(true);
+		writer.start();
+		return in;
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Limits the rate of Ajax requests with a token bucket. The bucket holds up to {@code burst} tokens,
+ * and is refilled at {@code permitsPerSecond}. Each request takes a token. If the bucket is empty,
+ * the request reserves the next token, and waits until it is available, without occupying a worker
+ * thread. Requests that wait are sent in the order they reserved their tokens.
+ * <br>
+ * A limiter can be scoped to the URLs that match a pattern, and can keep a separate bucket for each host.
+ * Share a limiter by setting it in the options of each request, or in {@link $#ajaxSetup(AjaxOptions) ajaxSetup}:
+ * <pre>
+ * RateLimiter search = new RateLimiter("search", 5, 10).pattern("https://api\\.example\\.com/search.*");
+ * RateLimiter hosts = new RateLimiter("hosts", 50, 50).perHost(true);
+ * $.ajaxSetup(new AjaxOptions().rateLimit(search, hosts));
+ * </pre>
+ * The state of each limiter that has been used is available from {@link AjaxMetrics#rateLimits()}.
+ * @author Phil Brown
+ * @see AjaxOptions#rateLimit(RateLimiter...)
+ */
+public class RateLimiter
+{
+	/** The name, used in the metrics */
+	private final String name;
+	/** Number of tokens added each second */
+	private final double permitsPerSecond;
+	/** Maximum number of tokens */
+	private final int burst;
+	/** The URLs that are limited, or {@code null} for all URLs */
+	private volatile Pattern pattern;
+	/** {@code true} to keep a separate bucket for each host */
+	private volatile boolean perHost;
+	/** {@code true} once the limiter has been added to the metrics */
+	private volatile boolean tracked;
+	/** The buckets, by host, or by the empty string if there is a single bucket */
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	/**
+	 * A snapshot of the state of a bucket
+	 */
+	public static class Stats
+	{
+		/** The name of the limiter, followed by the host if the limiter has a bucket for each host */
+		public String name;
+		/** Number of tokens added each second */
+		public double rate;
+		/** Maximum number of tokens */
+		public int burst;
+		/** Number of tokens that are available now */
+		public double available;
+		/** Number of requests waiting for a token */
+		public int waiting;
+		/** Number of requests that have taken a token */
+		public long acquired;
+		/** Number of requests that had to wait for a token */
+		public long delayed;
+		/** Average time (in milliseconds) delayed requests waited */
+		public long averageWait;
+		/** Longest time (in milliseconds) a request waited */
+		public long maxWait;
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.US, "%s[rate=%.1f/s, burst=%d, available=%.1f, waiting=%d, acquired=%d, delayed=%d, averageWait=%dms, maxWait=%dms]",
+					             name, rate, burst, available, waiting, acquired, delayed, averageWait, maxWait);
+		}
+	}
+
+	/**
+	 * A token bucket. Tokens can be borrowed, in which case the count is negative, and requests
+	 * wait until it has been paid back.
+	 */
+	private static class Bucket
+	{
+		/** Number of tokens, as of {@link #refilled} */
+		double tokens;
+		/** When the tokens were last counted, in nanoseconds */
+		long refilled;
+		/** Number of tokens taken */
+		long acquired;
+		/** Number of tokens that had to be waited for */
+		long delayed;
+		/** Total time waited, in nanoseconds */
+		long totalWait;
+		/** Longest time waited, in nanoseconds */
+		long maxWait;
+		/** The value of {@link #maxWait} before it was last raised, so that the reservation that raised it can be given back */
+		long previousMaxWait;
+
+		/**
+		 * Constructor
+		 * @param burst the initial number of tokens
+		 */
+		Bucket(int burst)
+		{
+			tokens = burst;
+			refilled = System.nanoTime();
+		}
+
+		/**
+		 * Adds the tokens accumulated since the last refill
+		 * @param now the current time, in nanoseconds
+		 * @param rate number of tokens added each second
+		 * @param burst maximum number of tokens
+		 */
+		private void refill(long now, double rate, int burst)
+		{
+			tokens = Math.min(burst, tokens + (now - refilled) * rate / 1000000000.0);
+			refilled = now;
+		}
+
+		/**
+		 * Takes a token
+		 * @param rate number of tokens added each second
+		 * @param burst maximum number of tokens
+		 * @return the time to wait until the token is available, in nanoseconds
+		 */
+		synchronized long reserve(double rate, int burst)
+		{
+			return reserve(rate, burst, Long.MAX_VALUE);
+		}
+
+		/**
+		 * Takes a token, unless it would not be available in time
+		 * @param rate number of tokens added each second
+		 * @param burst maximum number of tokens
+		 * @param limit the longest time to wait for the token, in nanoseconds
+		 * @return the time to wait until the token is available, in nanoseconds, or -1 if
+		 * that would be longer than {@code limit}, in which case no token is taken
+		 */
+		synchronized long reserve(double rate, int burst, long limit)
+		{
+			refill(System.nanoTime(), rate, burst);
+			if (tokens < 1 && (1 - tokens) / rate * 1000000000.0 > limit)
+				return -1;
+			tokens -= 1;
+			acquired++;
+			if (tokens >= 0)
+				return 0;
+			long wait = (long) Math.ceil(-tokens / rate * 1000000000.0);
+			delayed++;
+			totalWait += wait;
+			if (wait > maxWait)
+			{
+				previousMaxWait = maxWait;
+				maxWait = wait;
+			}
+			return wait;
+		}
+
+		/**
+		 * Gives back a token that was taken, but not used, and removes it from the statistics
+		 * @param wait the wait returned when the token was taken, in nanoseconds
+		 * @param rate number of tokens added each second
+		 * @param burst maximum number of tokens
+		 */
+		synchronized void release(long wait, double rate, int burst)
+		{
+			refill(System.nanoTime(), rate, burst);
+			tokens = Math.min(burst, tokens + 1);
+			acquired--;
+			if (wait > 0)
+			{
+				delayed--;
+				totalWait -= wait;
+				if (wait == maxWait)
+					maxWait = previousMaxWait;
+			}
+		}
+
+		/**
+		 * Get the state of the bucket
+		 * @param name the name of the bucket
+		 * @param rate number of tokens added each second
+		 * @param burst maximum number of tokens
+		 * @return the state
+		 */
+		synchronized Stats stats(String name, double rate, int burst)
+		{
+			refill(System.nanoTime(), rate, burst);
+			Stats stats = new Stats();
+			stats.name = name;
+			stats.rate = rate;
+			stats.burst = burst;
+			stats.available = Math.max(0, tokens);
+			stats.waiting = tokens < 0 ? (int) Math.ceil(-tokens) : 0;
+			stats.acquired = acquired;
+			stats.delayed = delayed;
+			stats.averageWait = delayed == 0 ? 0 : totalWait / delayed / 1000000;
+			stats.maxWait = maxWait / 1000000;
+			return stats;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param name the name of the limiter, used in the {@link AjaxMetrics#rateLimits() metrics}
+	 * @param permitsPerSecond number of requests allowed each second, on average
+	 * @param burst number of requests that can be sent at once, after the limiter has been idle
+	 */
+	public RateLimiter(String name, double permitsPerSecond, int burst)
+	{
+		if (name == null)
+			throw new NullPointerException("name");
+		if (!(permitsPerSecond > 0))
+			throw new IllegalArgumentException("permitsPerSecond must be positive");
+		if (burst < 1)
+			throw new IllegalArgumentException("burst must be at least 1");
+		this.name = name;
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+	}
+
+	/**
+	 * Limits only the requests with a URL that matches a pattern
+	 * @param regex the pattern, which must match the whole URL, or {@code null} to limit all requests (default)
+	 * @return this
+	 */
+	public RateLimiter pattern(String regex)
+	{
+		this.pattern = regex == null ? null : Pattern.compile(regex);
+		return this;
+	}
+
+	/**
+	 * Set whether or not each host has its own bucket
+	 * @param perHost {@code true} to limit the requests to each host separately. {@code false} to
+	 * limit all matching requests together (default).
+	 * @return this
+	 */
+	public RateLimiter perHost(boolean perHost)
+	{
+		this.perHost = perHost;
+		return this;
+	}
+
+	/**
+	 * Get the name of the limiter
+	 * @return the name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Get whether or not a request is limited
+	 * @param url the request URL
+	 * @return {@code true} if the limiter applies to the URL. Otherwise {@code false}.
+	 */
+	public boolean matches(String url)
+	{
+		Pattern p = pattern;
+		return p == null || (url != null && p.matcher(url).matches());
+	}
+
+	/**
+	 * Takes a token for a request, borrowing it if the bucket is empty
+	 * @param url the request URL
+	 * @return the time (in nanoseconds) the request must wait before it is sent, or 0 if it can
+	 * be sent now, or if the limiter does not apply to the URL.
+	 */
+	public long reserve(String url)
+	{
+		return reserve(url, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Takes a token for a request, if it will be available within the given time. Otherwise, no token is taken.
+	 * @param url the request URL
+	 * @param maxWait the longest time (in nanoseconds) the request can wait
+	 * @return the time (in nanoseconds) the request must wait before it is sent, or 0 if it can
+	 * be sent now, or if the limiter does not apply to the URL, or -1 if the token would not be
+	 * available in time
+	 */
+	public long reserve(String url, long maxWait)
+	{
+		if (!matches(url))
+			return 0;
+		if (!tracked)
+		{
+			tracked = true;
+			AjaxMetrics.getInstance().track(this);
+		}
+		String key = perHost ? AjaxScheduler.host(url) : "";
+		Bucket bucket = buckets.get(key);
+		if (bucket == null)
+		{
+			Bucket created = new Bucket(burst);
+			bucket = buckets.putIfAbsent(key, created);
+			if (bucket == null)
+				bucket = created;
+		}
+		return bucket.reserve(permitsPerSecond, burst, maxWait);
+	}
+
+	/**
+	 * Gives back a token that was {@link #reserve(String) reserved} for a request that will not be sent,
+	 * so that the requests that reserve tokens next do not wait for it, and the reservation is not counted
+	 * in the {@link #getStats() statistics}
+	 * @param url the request URL
+	 * @param wait the wait (in nanoseconds) returned by {@link #reserve(String, long)}
+	 */
+	public void release(String url, long wait)
+	{
+		if (!matches(url))
+			return;
+		Bucket bucket = buckets.get(perHost ? AjaxScheduler.host(url) : "");
+		if (bucket != null)
+			bucket.release(wait, permitsPerSecond, burst);
+	}
+
+	/**
+	 * Get the state of each bucket of this limiter
+	 * @return the state of each bucket, by the name of the limiter, followed by a space and the
+	 * host if the limiter has a bucket for each host
+	 */
+	public Map<String, Stats> getStats()
+	{
+		Map<String, Stats> stats = new TreeMap<String, Stats>();
+		for (Map.Entry<String, Bucket> entry : buckets.entrySet())
+		{
+			String key = entry.getKey().isEmpty() ? name : name + " " + entry.getKey();
+			stats.put(key, entry.getValue().stats(key, permitsPerSecond, burst));
+		}
+		return stats;
+	}
+
+	/**
+	 * Refills every bucket, and clears their counts
+	 */
+	public void reset()
+	{
+		buckets.clear();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.US, "RateLimiter[%s, rate=%.1f/s, burst=%d%s%s]", name, permitsPerSecond, burst,
+				             pattern == null ? "" : ", pattern=" + pattern.pattern(), perHost ? ", perHost" : "");
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 Phil Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package self.philbrown.javaQuery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * Determines whether, and when, a failed Ajax request is sent again. Delays grow exponentially
+ * from the {@link #initialDelay(long) initial delay}, and are randomized by the {@link #jitter(double) jitter}
+ * so that many clients do not retry at the same moment. A {@code Retry-After} response header
+ * is honored when it asks for a longer delay.
+ * <br>
+ * By default, only idempotent requests ({@code GET}, {@code HEAD}, {@code PUT}, {@code DELETE},
+ * {@code OPTIONS} and {@code TRACE}) are retried, after an {@link IOException} or a 408, 429, 500,
+ * 502, 503 or 504 response.
+ * @author Phil Brown
+ * @see AjaxOptions#retry(RetryPolicy)
+ */
+public class RetryPolicy
+{
+	/** Used to compute the jitter */
+	private static final Random random = new Random();
+
+	/** Maximum number of attempts, including the first one */
+	private int maxAttempts = 3;
+	/** Delay (in milliseconds) before the first retry */
+	private long initialDelay = 200;
+	/** Maximum delay (in milliseconds) before a retry */
+	private long maxDelay = 10000;
+	/** Factor by which the delay grows after each attempt */
+	private double multiplier = 2;
+	/** Fraction of each delay that is randomized */
+	private double jitter = 0.5;
+	/** Response status codes that are retried */
+	private Set<Integer> retryableStatuses = new HashSet<Integer>(Arrays.asList(408, 429, 500, 502, 503, 504));
+	/** Exception types that are retried */
+	private List<Class<? extends Throwable>> retryableExceptions = new ArrayList<Class<? extends Throwable>>();
+	/** Whether or not requests with non-idempotent methods, such as {@code POST}, are retried */
+	private boolean retryNonIdempotent;
+
+	/**
+	 * Constructor
+	 */
+	public RetryPolicy()
+	{
+		retryableExceptions.add(IOException.class);
+	}
+
+	/**
+	 * Set the maximum number of attempts, including the first one. Default is 3.
+	 * @param maxAttempts the maximum number of attempts
+	 * @return this
+	 */
+	public RetryPolicy maxAttempts(int maxAttempts)
+	{
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/**
+	 * Get the maximum number of attempts, including the first one
+	 * @return the maximum number of attempts
+	 */
+	public int maxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	/**
+	 * Set the delay before the first retry. Default is 200 ms.
+	 * @param initialDelay the delay, in milliseconds
+	 * @return this
+	 */
+	public RetryPolicy initialDelay(long initialDelay)
+	{
+		this.initialDelay = initialDelay;
+		return this;
+	}
+
+	/**
+	 * Set the maximum delay before a retry. Default is 10 seconds.
+	 * @param maxDelay the delay, in milliseconds
+	 * @return this
+	 */
+	public RetryPolicy maxDelay(long maxDelay)
+	{
+		this.maxDelay = maxDelay;
+		return this;
+	}
+
+	/**
+	 * Set the factor by which the delay grows after each attempt. Default is 2.
+	 * @param multiplier the factor
+	 * @return this
+	 */
+	public RetryPolicy multiplier(double multiplier)
+	{
+		this.multiplier = multiplier;
+		return this;
+	}
+
+	/**
+	 * Set the fraction of each delay that is randomized. With a jitter of 0.5, a delay of
+	 * 400 ms becomes a random delay between 200 and 400 ms. Default is 0.5.
+	 * @param jitter the fraction, between 0 (no jitter) and 1 (full jitter)
+	 * @return this
+	 */
+	public RetryPolicy jitter(double jitter)
+	{
+		this.jitter = Math.max(0, Math.min(1, jitter));
+		return this;
+	}
+
+	/**
+	 * Set the response status codes that are retried. Default is 408, 429, 500, 502, 503 and 504.
+	 * @param statuses the status codes
+	 * @return this
+	 */
+	public RetryPolicy retryOn(Integer... statuses)
+	{
+		this.retryableStatuses = new HashSet<Integer>(Arrays.asList(statuses));
+		return this;
+	}
+
+	/**
+	 * Set the exception types that are retried. Subclasses of these types are also retried.
+	 * Default is {@link IOException}.
+	 * @param exceptions the exception types
+	 * @return this
+	 */
+	@SafeVarargs
+	public final RetryPolicy retryOnExceptions(Class<? extends Throwable>... exceptions)
+	{
+		List<Class<? extends Throwable>> types = new ArrayList<Class<? extends Throwable>>(exceptions.length);
+		for (Class<? extends Throwable> type : exceptions)
+			types.add(type);
+		this.retryableExceptions = types;
+		return this;
+	}
+
+	/**
+	 * Set whether or not requests with non-idempotent methods, such as {@code POST}, are retried.
+	 * Default is {@code false}.
+	 * @param retryNonIdempotent {@code true} to retry all requests
+	 * @return this
+	 */
+	public RetryPolicy retryNonIdempotent(boolean retryNonIdempotent)
+	{
+		this.retryNonIdempotent = retryNonIdempotent;
+		return this;
+	}
+
+	/**
+	 * Checks whether or not a request that received the given response status should be sent again
+	 * @param request the request
+	 * @param attempt the number of attempts made so far
+	 * @param status the response status code
+	 * @return {@code true} if the request should be retried
+	 */
+	public boolean shouldRetry(HttpRequest request, int attempt, int status)
+	{
+		return canRetry(request, attempt) && retryableStatuses.contains(status);
+	}
+
+	/**
+	 * Checks whether or not a request that failed with the given exception should be sent again
+	 * @param request the request
+	 * @param attempt the number of attempts made so far
+	 * @param t the exception
+	 * @return {@code true} if the request should be retried
+	 */
+	public boolean shouldRetry(HttpRequest request, int attempt, Throwable t)
+	{
+		if (!canRetry(request, attempt))
+			return false;
+		for (Class<? extends Throwable> type : retryableExceptions)
+		{
+			if (type.isInstance(t))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the amount of time to wait before the next attempt
+	 * @param attempt the number of attempts made so far
+	 * @param retryAfter the {@code Retry-After} response header. May be {@code null}.
+	 * @return the delay, in milliseconds
+	 */
+	public long delay(int attempt, Header retryAfter)
+	{
+		double base = initialDelay * Math.pow(multiplier, attempt - 1);
+		long delay = (long) Math.min(maxDelay, base);
+		synchronized (random)
+		{
+			delay -= (long) (delay * jitter * random.nextDouble());
+		}
+		if (retryAfter != null)
+		{
+			long requested = parseRetryAfter(retryAfter.getValue());
+			if (requested > delay)
+				delay = Math.min(maxDelay, requested);
+		}
+		return delay;
+	}
+
+	/**
+	 * Checks the attempt count and whether the request can be sent again
+	 * @param request the request
+	 * @param attempt the number of attempts made so far
+	 * @return {@code true} if the request may be retried
+	 */
+	private boolean canRetry(HttpRequest request, int attempt)
+	{
+		if (attempt >= maxAttempts)
+			return false;
+		if (request instanceof HttpEntityEnclosingRequest)
+		{
+			HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+			if (enclosing.getEntity() != null && !enclosing.getEntity().isRepeatable())
+				return false;
+		}
+		if (retryNonIdempotent)
+			return true;
+		String method = request.getRequestLine().getMethod();
+		return !method.equalsIgnoreCase("POST") && !method.equalsIgnoreCase("PATCH");
+	}
+
+	/**
+	 * Parses a {@code Retry-After} header value, which is either a number of seconds or an HTTP date
+	 * @param value the header value
+	 * @return the delay, in milliseconds, or 0 if the value cannot be parsed
+	 */
+	private static long parseRetryAfter(String value)
+	{
+		try
+		{
+			return Long.parseLong(value.trim()) * 1000;
+		}
+		catch (NumberFormatException e)
+		{
+			try
+			{
+				Date date = DateUtils.parseDate(value);
+				return Math.max(0, date.getTime() - System.currentTimeMillis());
+			}
+			catch (Throwable t)
+			{
+				return 0;
+			}
+		}
+	}
+}